@@ -0,0 +1,80 @@
+package org.geirove.exmeso.benchmark;
+
+import java.io.IOException;
+import java.util.Comparator;
+
+import org.geirove.exmeso.codec.RecordCodec;
+import org.geirove.exmeso.codec.RecordInput;
+import org.geirove.exmeso.codec.RecordOutput;
+import org.msgpack.packer.Packer;
+import org.msgpack.template.AbstractTemplate;
+import org.msgpack.template.Template;
+import org.msgpack.unpacker.Unpacker;
+
+/**
+ * The record sorted by the benchmark, a sort key followed by a payload that
+ * makes records as wide as needed. The fields are public so that Jackson and
+ * Kryo can handle the record without further configuration.
+ *
+ * @author grove@geirove.org
+ */
+public class BenchmarkRecord {
+
+    public static final Comparator<BenchmarkRecord> KEY_ORDER = new Comparator<BenchmarkRecord>() {
+        @Override
+        public int compare(BenchmarkRecord o1, BenchmarkRecord o2) {
+            return Long.compare(o1.key, o2.key);
+        }
+    };
+
+    public static final RecordCodec<BenchmarkRecord> CODEC = new RecordCodec<BenchmarkRecord>() {
+        @Override
+        public void write(BenchmarkRecord value, RecordOutput out) throws IOException {
+            out.writeVarLong(value.key);
+            out.writeBytes(value.payload);
+        }
+        @Override
+        public BenchmarkRecord read(RecordInput in, BenchmarkRecord reuse) throws IOException {
+            BenchmarkRecord result = reuse == null ? new BenchmarkRecord() : reuse;
+            result.key = in.readVarLong();
+            result.payload = in.readBytes();
+            return result;
+        }
+    };
+
+    /**
+     * A MessagePack template written by hand, since the templates generated
+     * for @Message classes need access to ClassLoader.defineClass, which
+     * newer JVMs do not give without --add-opens.
+     */
+    public static final Template<BenchmarkRecord> MSGPACK_TEMPLATE = new AbstractTemplate<BenchmarkRecord>() {
+        @Override
+        public void write(Packer pk, BenchmarkRecord v, boolean required) throws IOException {
+            pk.writeArrayBegin(2);
+            pk.write(v.key);
+            pk.write(v.payload);
+            pk.writeArrayEnd();
+        }
+        @Override
+        public BenchmarkRecord read(Unpacker u, BenchmarkRecord to, boolean required) throws IOException {
+            BenchmarkRecord result = to == null ? new BenchmarkRecord() : to;
+            u.readArrayBegin();
+            result.key = u.readLong();
+            result.payload = u.readByteArray();
+            u.readArrayEnd();
+            return result;
+        }
+    };
+
+    public long key;
+    public byte[] payload;
+
+    public BenchmarkRecord() {
+    }
+
+    public BenchmarkRecord(long key, byte[] payload) {
+        this.key = key;
+        this.payload = payload;
+    }
+
+}
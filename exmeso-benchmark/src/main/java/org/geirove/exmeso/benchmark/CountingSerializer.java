@@ -0,0 +1,130 @@
+package org.geirove.exmeso.benchmark;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geirove.exmeso.ExternalMergeSort;
+
+/**
+ * Counts the bytes that a serializer writes to and reads from chunk files,
+ * which is the spill volume of a sort. Use the create method, which keeps
+ * the batch methods of a BatchSerializer.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ */
+class CountingSerializer<T> implements ExternalMergeSort.Serializer<T> {
+
+    private final ExternalMergeSort.Serializer<T> nested;
+    protected final AtomicLong written = new AtomicLong();
+    protected final AtomicLong read = new AtomicLong();
+
+    private CountingSerializer(ExternalMergeSort.Serializer<T> nested) {
+        this.nested = nested;
+    }
+
+    static <T> CountingSerializer<T> create(ExternalMergeSort.Serializer<T> nested) {
+        if (nested instanceof ExternalMergeSort.BatchSerializer) {
+            return new Batch<T>((ExternalMergeSort.BatchSerializer<T>)nested);
+        }
+        return new CountingSerializer<T>(nested);
+    }
+
+    long getBytesWritten() {
+        return written.get();
+    }
+
+    long getBytesRead() {
+        return read.get();
+    }
+
+    @Override
+    public void writeValues(Iterator<T> values, OutputStream out) throws IOException {
+        nested.writeValues(values, new CountingOutputStream(out, written));
+    }
+
+    @Override
+    public Iterator<T> readValues(InputStream input) throws IOException {
+        return nested.readValues(new CountingInputStream(input, read));
+    }
+
+    private static class Batch<T> extends CountingSerializer<T> implements ExternalMergeSort.BatchSerializer<T> {
+
+        private final ExternalMergeSort.BatchSerializer<T> nested;
+
+        private Batch(ExternalMergeSort.BatchSerializer<T> nested) {
+            super(nested);
+            this.nested = nested;
+        }
+
+        @Override
+        public BatchReader<T> createReader(InputStream input) throws IOException {
+            return nested.createReader(new CountingInputStream(input, read));
+        }
+
+        @Override
+        public BatchWriter<T> createWriter(OutputStream out) throws IOException {
+            return nested.createWriter(new CountingOutputStream(out, written));
+        }
+
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+
+        private final AtomicLong count;
+
+        CountingOutputStream(OutputStream out, AtomicLong count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.addAndGet(len);
+        }
+
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+
+        private final AtomicLong count;
+
+        private CountingInputStream(InputStream in, AtomicLong count) {
+            super(in);
+            this.count = count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count.addAndGet(n);
+            }
+            return n;
+        }
+
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.geirove.exmeso.benchmark;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * The distributions of sort keys that the benchmark generates data with. The
+ * data is generated while it is being sorted, so datasets of any size can be
+ * sorted without first being stored, and the same seed always generates the
+ * same data.
+ *
+ * @author grove@geirove.org
+ */
+public enum Distribution {
+
+    /**
+     * Keys drawn uniformly from all long values.
+     */
+    UNIFORM {
+        @Override
+        long key(long index, long count, Random random) {
+            return random.nextLong();
+        }
+    },
+
+    /**
+     * Keys drawn from count/10 distinct values with Zipf distributed
+     * frequencies, so that a few keys make up most of the data.
+     */
+    ZIPF {
+        @Override
+        long key(long index, long count, Random random) {
+            // inverse of the continuous approximation of the Zipf distribution
+            double n = Math.max(1, count / 10);
+            double u = 1.0 - random.nextDouble();
+            return (long)Math.pow((Math.pow(n, 1 - ZIPF_EXPONENT) - 1) * u + 1, 1 / (1 - ZIPF_EXPONENT));
+        }
+    },
+
+    /**
+     * Keys in ascending order.
+     */
+    PRESORTED {
+        @Override
+        long key(long index, long count, Random random) {
+            return index;
+        }
+    },
+
+    /**
+     * Keys in descending order.
+     */
+    REVERSE {
+        @Override
+        long key(long index, long count, Random random) {
+            return count - index;
+        }
+    },
+
+    /**
+     * Keys drawn uniformly from a hundred distinct values.
+     */
+    DUPLICATES {
+        @Override
+        long key(long index, long count, Random random) {
+            return random.nextInt(100);
+        }
+    };
+
+    private static final double ZIPF_EXPONENT = 1.2;
+
+    abstract long key(long index, long count, Random random);
+
+    /**
+     * Returns an iterator over generated records.
+     * @param count The number of records.
+     * @param payloadSize The number of random payload bytes in each record.
+     * @param seed The seed of the random numbers.
+     * @return an iterator over the records.
+     */
+    public Iterator<BenchmarkRecord> records(final long count, final int payloadSize, long seed) {
+        final Random random = new Random(seed);
+        return new Iterator<BenchmarkRecord>() {
+            private long index;
+
+            @Override
+            public boolean hasNext() {
+                return index < count;
+            }
+
+            @Override
+            public BenchmarkRecord next() {
+                if (index >= count) {
+                    throw new NoSuchElementException();
+                }
+                byte[] payload = new byte[payloadSize];
+                random.nextBytes(payload);
+                return new BenchmarkRecord(key(index++, count, random), payload);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+}
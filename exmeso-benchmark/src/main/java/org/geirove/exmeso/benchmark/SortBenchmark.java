@@ -0,0 +1,216 @@
+package org.geirove.exmeso.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geirove.exmeso.CloseableIterator;
+import org.geirove.exmeso.ExternalMergeSort;
+import org.geirove.exmeso.codec.CodecSerializer;
+import org.geirove.exmeso.jackson.JacksonSerializer;
+import org.geirove.exmeso.kryo.KryoSerializer;
+import org.geirove.exmeso.msgpack.MessagePackSerializer;
+import org.msgpack.MessagePack;
+
+/**
+ * Runs full mergeSort pipelines over generated data for every combination of
+ * the given serializers, distributions, payload sizes, chunk sizes and fan-ins
+ * (maxOpenFiles), and writes one line of JSON per run, so that the results
+ * can be tracked over time. Every run verifies that the result is sorted and
+ * complete. Options are given as name=value arguments:
+ *
+ * <pre>
+ * records=1000000
+ * serializers=codec,kryo,msgpack,jackson
+ * distributions=uniform,zipf,presorted,reverse,duplicates
+ * payloads=0,256
+ * chunkSizes=100000
+ * fanIns=25
+ * seed=42
+ * tempDirectory=(java.io.tmpdir)
+ * output=(standard output)
+ * </pre>
+ *
+ * Each result reports the records and megabytes of serialized data sorted per
+ * second, the bytes written to and read from chunk files, the number of passes
+ * over the data, which is the bytes written divided by the size of the data
+ * serialized once, and the peak heap usage.
+ *
+ * @author grove@geirove.org
+ */
+public class SortBenchmark {
+
+    private final Map<String,String> options;
+
+    private SortBenchmark(Map<String,String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String,String> options = new HashMap<String,String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        new SortBenchmark(options).run();
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private List<String> listOption(String name, String defaultValue) {
+        List<String> result = new ArrayList<String>();
+        for (String value : option(name, defaultValue).split(",")) {
+            if (!value.trim().isEmpty()) {
+                result.add(value.trim());
+            }
+        }
+        return result;
+    }
+
+    private List<Integer> intsOption(String name, String defaultValue) {
+        List<Integer> result = new ArrayList<Integer>();
+        for (String value : listOption(name, defaultValue)) {
+            result.add(Integer.valueOf(value));
+        }
+        return result;
+    }
+
+    private void run() throws IOException {
+        long records = Long.parseLong(option("records", "1000000"));
+        long seed = Long.parseLong(option("seed", "42"));
+        File tempDirectory = new File(option("tempDirectory", System.getProperty("java.io.tmpdir")));
+        String output = option("output", null);
+        OutputStream out = output == null ? System.out : new FileOutputStream(output, true);
+        PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try {
+            for (String serializer : listOption("serializers", "codec,kryo,msgpack,jackson")) {
+                for (String distribution : listOption("distributions", "uniform,zipf,presorted,reverse,duplicates")) {
+                    for (int payload : intsOption("payloads", "0,256")) {
+                        for (int chunkSize : intsOption("chunkSizes", "100000")) {
+                            for (int fanIn : intsOption("fanIns", "25")) {
+                                writer.println(runSort(serializer, Distribution.valueOf(distribution.toUpperCase(Locale.ROOT)),
+                                        records, payload, chunkSize, fanIn, seed, tempDirectory));
+                                writer.flush();
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            writer.flush();
+            if (output != null) {
+                writer.close();
+            }
+        }
+    }
+
+    private static ExternalMergeSort.Serializer<BenchmarkRecord> createSerializer(String name) {
+        if ("codec".equals(name)) {
+            return new CodecSerializer<BenchmarkRecord>(BenchmarkRecord.CODEC);
+        } else if ("kryo".equals(name)) {
+            return new KryoSerializer<BenchmarkRecord>(BenchmarkRecord.class);
+        } else if ("msgpack".equals(name)) {
+            MessagePack msgpack = new MessagePack();
+            msgpack.register(BenchmarkRecord.class, BenchmarkRecord.MSGPACK_TEMPLATE);
+            return new MessagePackSerializer<BenchmarkRecord>(BenchmarkRecord.class, msgpack);
+        } else if ("jackson".equals(name)) {
+            return new JacksonSerializer<BenchmarkRecord>(BenchmarkRecord.class);
+        }
+        throw new IllegalArgumentException("Unknown serializer: " + name);
+    }
+
+    private static String runSort(String serializerName, Distribution distribution, long records, int payload, int chunkSize, int fanIn, long seed, File tempDirectory) throws IOException {
+        ExternalMergeSort.Serializer<BenchmarkRecord> nested = createSerializer(serializerName);
+
+        // the size of the data serialized once, which a pass over the data writes
+        AtomicLong dataBytes = new AtomicLong();
+        nested.writeValues(distribution.records(records, payload, seed), new CountingSerializer.CountingOutputStream(OutputStream.nullOutputStream(), dataBytes));
+
+        CountingSerializer<BenchmarkRecord> serializer = CountingSerializer.create(nested);
+        ExternalMergeSort<BenchmarkRecord> sort = ExternalMergeSort.newSorter(serializer, BenchmarkRecord.KEY_ORDER)
+                .withTempDirectory(tempDirectory)
+                .withChunkSize(chunkSize)
+                .withMaxOpenFiles(fanIn)
+                .withDistinct(false)
+                .withCleanup(true)
+                .build();
+
+        System.gc();
+        List<MemoryPoolMXBean> heapPools = new ArrayList<MemoryPoolMXBean>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heapPools.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        long count = 0;
+        CloseableIterator<BenchmarkRecord> iter = sort.mergeSort(distribution.records(records, payload, seed));
+        try {
+            long last = Long.MIN_VALUE;
+            while (iter.hasNext()) {
+                long key = iter.next().key;
+                if (key < last) {
+                    throw new IllegalStateException("Result not sorted: " + key + " after " + last);
+                }
+                last = key;
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (count != records) {
+            throw new IllegalStateException("Result has " + count + " records, expected " + records);
+        }
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : heapPools) {
+            peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        StringBuilder sb = new StringBuilder("{");
+        field(sb, "serializer", "\"" + serializerName + "\"");
+        field(sb, "distribution", "\"" + distribution.name().toLowerCase(Locale.ROOT) + "\"");
+        field(sb, "records", records);
+        field(sb, "payloadBytes", payload);
+        field(sb, "chunkSize", chunkSize);
+        field(sb, "fanIn", fanIn);
+        field(sb, "seconds", String.format(Locale.ROOT, "%.3f", seconds));
+        field(sb, "recordsPerSecond", String.format(Locale.ROOT, "%.0f", records / seconds));
+        field(sb, "mbPerSecond", String.format(Locale.ROOT, "%.2f", dataBytes.get() / 1e6 / seconds));
+        field(sb, "dataBytes", dataBytes.get());
+        field(sb, "spillBytesWritten", serializer.getBytesWritten());
+        field(sb, "spillBytesRead", serializer.getBytesRead());
+        field(sb, "passes", String.format(Locale.ROOT, "%.2f", dataBytes.get() == 0 ? 0.0 : (double)serializer.getBytesWritten() / dataBytes.get()));
+        field(sb, "peakHeapBytes", peakHeap);
+        field(sb, "maxHeapBytes", Runtime.getRuntime().maxMemory());
+        sb.setLength(sb.length() - 1);
+        return sb.append("}").toString();
+    }
+
+    private static void field(StringBuilder sb, String name, Object value) {
+        sb.append('"').append(name).append("\":").append(value).append(',');
+    }
+
+}
@@ -0,0 +1,198 @@
+package org.geirove.exmeso;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands off values from a merge running on one thread to a consumer running
+ * on another, through a bounded queue of batches. Batching keeps the cost of
+ * the queue synchronization small compared to the cost of the values, and the
+ * bound on the queue keeps the merge from running too far ahead.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values handed off.
+ */
+class BatchHandoff<T> implements Runnable {
+
+    private static final Object[] END = new Object[0];
+
+    private final CloseableIterator<T> values;
+    private final int batchSize;
+    private final BlockingQueue<Object[]> queue;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private volatile boolean cancelled;
+    private volatile Throwable error;
+
+    BatchHandoff(CloseableIterator<T> values, int batchSize, int capacity) {
+        this.values = values;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<Object[]>(capacity);
+    }
+
+    /**
+     * Submits the producer to the executor. If the executor rejects it, the
+     * values are closed and the rejection is rethrown.
+     */
+    void start(Executor executor) {
+        try {
+            executor.execute(this);
+        } catch (RuntimeException e) {
+            cancelled = true;
+            try {
+                values.close();
+            } catch (IOException ce) {
+                e.addSuppressed(ce);
+            } finally {
+                done.countDown();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the values into batches and puts them on the queue. This is the
+     * producer side, which is run on a separate thread.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!cancelled && values.hasNext()) {
+                Object[] batch = new Object[batchSize];
+                int n = 0;
+                while (n < batchSize && values.hasNext()) {
+                    batch[n++] = values.next();
+                }
+                put(n == batchSize ? batch : Arrays.copyOf(batch, n));
+            }
+        } catch (Throwable t) {
+            error = t;
+        } finally {
+            try {
+                values.close();
+            } catch (Throwable t) {
+                if (error == null) {
+                    error = t;
+                }
+            }
+            try {
+                put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        }
+    }
+
+    private void put(Object[] batch) throws InterruptedException {
+        while (!cancelled) {
+            if (queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes the next batch from the queue. This is the consumer side.
+     * @return the next batch, or null if there are no more values.
+     * @throws IOException if the producer failed.
+     */
+    Object[] take() throws IOException {
+        Object[] batch;
+        try {
+            batch = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for merged values");
+        }
+        if (batch == END) {
+            queue.offer(END); // let later calls see the end too
+            Throwable t = error;
+            if (t instanceof IOException) {
+                throw (IOException)t;
+            } else if (t instanceof RuntimeException) {
+                throw (RuntimeException)t;
+            } else if (t instanceof Error) {
+                throw (Error)t;
+            } else if (t != null) {
+                throw new IOException(t);
+            }
+            return null;
+        }
+        return batch;
+    }
+
+    /**
+     * Returns an iterator over the values taken from the queue. A failure of
+     * the producer is thrown as an UncheckedIOException.
+     */
+    Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private Object[] batch = new Object[0];
+            private int position;
+            private boolean end;
+
+            @Override
+            public boolean hasNext() {
+                if (position < batch.length) {
+                    return true;
+                }
+                if (end) {
+                    return false;
+                }
+                try {
+                    Object[] next = take();
+                    if (next == null) {
+                        end = true;
+                        return false;
+                    }
+                    batch = next;
+                    position = 0;
+                    return true;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return (T)batch[position++];
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Stops the producer if it is still running, and waits for it to close
+     * the values.
+     */
+    void finish() throws IOException {
+        cancelled = true;
+        queue.clear();
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for merge to finish");
+        }
+    }
+
+}
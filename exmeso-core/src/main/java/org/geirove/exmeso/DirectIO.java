@@ -0,0 +1,317 @@
+package org.geirove.exmeso;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams over chunk files opened with ExtendedOpenOption.DIRECT, which
+ * bypasses the page cache, so that spilling large sorts does not evict the
+ * cached pages of the rest of the process, nor build up dirty pages that
+ * stall on writeback. Direct I/O requires transfers that are aligned to the
+ * block size of the file store, so the streams transfer whole blocks from
+ * and to aligned direct buffers. The buffers are pooled, since direct
+ * buffers are only freed by garbage collection. A merge reads from as many
+ * files as its fan-in, so the read buffers share a fixed budget rather than
+ * each taking a full buffer. The DIRECT option is looked up reflectively,
+ * since it is not part of the standard API.
+ *
+ * @author grove@geirove.org
+ */
+class DirectIO {
+
+    // the size of each transfer, rounded up to a multiple of the block size
+    static final int BUFFER_SIZE = 1024 * 1024;
+
+    // the total size of the read buffers of one merge
+    static final int READ_BUDGET = 16 * BUFFER_SIZE;
+
+    // the total size of the buffers kept for reuse
+    private static final long POOL_BYTES = 64L * BUFFER_SIZE;
+
+    private static final OpenOption DIRECT = directOption();
+
+    // pooled buffers by capacity
+    private static final ConcurrentMap<Integer, ConcurrentLinkedQueue<ByteBuffer>> pool = new ConcurrentHashMap<Integer, ConcurrentLinkedQueue<ByteBuffer>>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    private DirectIO() {
+    }
+
+    /**
+     * @return the DIRECT option of com.sun.nio.file.ExtendedOpenOption, or
+     * null if the JDK does not have it.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static OpenOption directOption() {
+        try {
+            Class<?> type = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+            return (OpenOption)Enum.valueOf((Class<Enum>)type, "DIRECT");
+        } catch (ClassNotFoundException | IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static int roundUp(int size, int blockSize) {
+        return (size + blockSize - 1) / blockSize * blockSize;
+    }
+
+    /**
+     * Opens the file for direct writing, truncating it.
+     * @return the stream, or null if the file system does not support direct I/O.
+     */
+    static DirectOutputStream openOutput(File file) {
+        if (DIRECT == null) {
+            return null;
+        }
+        int blockSize;
+        FileChannel channel;
+        try {
+            blockSize = (int)Files.getFileStore(file.toPath()).getBlockSize();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, DIRECT);
+        } catch (IOException | UnsupportedOperationException e) {
+            // the caller falls back to buffered I/O, which reports real errors
+            return null;
+        }
+        return new DirectOutputStream(channel, blockSize);
+    }
+
+    /**
+     * Opens the file for direct reading with a full size buffer.
+     * @return the stream, or null if the file system does not support direct I/O.
+     */
+    static DirectInputStream openInput(File file) {
+        return openInput(file, 1);
+    }
+
+    /**
+     * Opens the file for direct reading, with a buffer that is its share of
+     * the read budget when it is one of 'fanIn' files that are read at the
+     * same time.
+     * @return the stream, or null if the file system does not support direct I/O.
+     */
+    static DirectInputStream openInput(File file, int fanIn) {
+        if (DIRECT == null) {
+            return null;
+        }
+        int blockSize;
+        FileChannel channel;
+        try {
+            blockSize = (int)Files.getFileStore(file.toPath()).getBlockSize();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, DIRECT);
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+        int bufferSize = Math.min(BUFFER_SIZE, READ_BUDGET / Math.max(1, fanIn));
+        return new DirectInputStream(channel, blockSize, Math.max(blockSize, roundUp(bufferSize, blockSize)));
+    }
+
+    private static ByteBuffer acquireBuffer(int capacity, int blockSize) {
+        ConcurrentLinkedQueue<ByteBuffer> buffers = pool.get(capacity);
+        ByteBuffer buffer;
+        while (buffers != null && (buffer = buffers.poll()) != null) {
+            pooledBytes.addAndGet(-capacity);
+            if (buffer.alignmentOffset(0, blockSize) == 0) {
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity + blockSize).alignedSlice(blockSize);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (pooledBytes.addAndGet(capacity) <= POOL_BYTES) {
+            pool.computeIfAbsent(capacity, c -> new ConcurrentLinkedQueue<ByteBuffer>()).add(buffer);
+        } else {
+            pooledBytes.addAndGet(-capacity);
+        }
+    }
+
+    static class DirectOutputStream extends OutputStream {
+
+        private final FileChannel channel;
+        private final int blockSize;
+        private ByteBuffer buffer;
+        private long length;
+        private boolean finished;
+
+        private DirectOutputStream(FileChannel channel, int blockSize) {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            this.buffer = acquireBuffer(roundUp(BUFFER_SIZE, blockSize), blockSize);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if (!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            buffer.put((byte)b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    writeBuffer();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void ensureOpen() throws IOException {
+            if (finished) {
+                throw new IOException("Stream is finished");
+            }
+        }
+
+        private void writeBuffer() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                length += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Writes the last partial block padded to a whole block, and then
+         * truncates the file to the length of the data.
+         */
+        private void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            int tail = buffer.position();
+            if (tail > 0) {
+                int padded = roundUp(tail, blockSize);
+                while (buffer.position() < padded) {
+                    buffer.put((byte)0);
+                }
+                writeBuffer();
+                length -= padded - tail;
+                channel.truncate(length);
+            }
+        }
+
+        /**
+         * Writes all data and forces it and the file length to the device.
+         */
+        void sync() throws IOException {
+            finish();
+            channel.force(true);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            try {
+                finish();
+            } finally {
+                releaseBuffer(buffer);
+                buffer = null;
+                channel.close();
+            }
+        }
+
+    }
+
+    static class DirectInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private final int blockSize;
+        private ByteBuffer buffer;
+        private boolean eof;
+
+        private DirectInputStream(FileChannel channel, int blockSize, int bufferSize) {
+            this.channel = channel;
+            this.blockSize = blockSize;
+            this.buffer = acquireBuffer(bufferSize, blockSize);
+            buffer.limit(0);
+        }
+
+        /**
+         * Reads whole blocks until the buffer is full or the end of the file
+         * is reached. Only the last block of the file can be partial, and
+         * the position would no longer be aligned after it.
+         * @return false if there are no more bytes.
+         */
+        private boolean fill() throws IOException {
+            if (eof) {
+                return false;
+            }
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer);
+                if (n <= 0 || buffer.position() % blockSize != 0) {
+                    eof = true;
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream is closed");
+            }
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buffer.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (buffer == null) {
+                throw new IOException("Stream is closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer == null ? 0 : buffer.remaining();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                return;
+            }
+            releaseBuffer(buffer);
+            buffer = null;
+            channel.close();
+        }
+
+    }
+
+}
@@ -1,18 +1,47 @@
 package org.geirove.exmeso;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collector;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * An implementation of External Merge Sort. This class has a fluent API for building an
@@ -28,14 +57,48 @@ public class ExternalMergeSort<T> {
     public static boolean debug = false;
     public static boolean debugMerge = false;
 
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "exmeso-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    // number of merged batches that may be waiting for the writer in mergeSortTo
+    private static final int HANDOFF_CAPACITY = 4;
+
+    // average length of the ascending runs of a chunk that is considered nearly sorted
+    private static final int MIN_NATURAL_RUN = 32;
+
+    // the smallest chunk under heap pressure, as a fraction of chunkSize
+    private static final int MIN_CHUNK_DIVISOR = 16;
+
     private final Builder<T> config;
     private final Serializer<T> serializer;
     private final Comparator<T> comparator;
+    private final HeapMonitor heapMonitor;
+
+    // the resources granted by the resource manager to this instance, if any
+    private final SortResourceManager.Grant grant;
+
+    // the chunk size adapted to heap pressure, and the collection it was adapted after
+    private volatile int adaptiveChunkSize;
+    private volatile long adaptedCollection = -1;
 
     private ExternalMergeSort(Builder<T> config) {
+        this(config, null);
+    }
+
+    private ExternalMergeSort(Builder<T> config, SortResourceManager.Grant grant) {
         this.config = config;
+        this.grant = grant;
         this.serializer = config.serializer;
         this.comparator = config.comparator;
+        this.heapMonitor = config.heapPressureLimit > 0 ? HeapMonitor.getInstance() : null;
+        this.adaptiveChunkSize = config.chunkSize;
     }
 
     /**
@@ -47,22 +110,77 @@ public class ExternalMergeSort<T> {
         return new Builder<T>(serializer, comparator);
     }
 
+    /**
+     * Fluent API building a new instance of ExternalMergeSort<T> that orders values
+     * by a sort key. See Builder.withSortKey(...).
+     * @param serializer Serializer<T> to use when sorting.
+     * @param keyExtractor Function that extracts the sort key of a value.
+     * @param keyComparator Comparator that orders the sort keys.
+     * @return Config instance that can be used to set options and in the end create a new instance.
+     */
+    public static <T,K> Builder<T> newSorter(Serializer<T> serializer, Function<? super T, ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+        return new Builder<T>(serializer, null).withSortKey(keyExtractor, keyComparator);
+    }
+
+    /**
+     * Fluent API building a new instance of ExternalMergeSort<T> that orders values
+     * by a declarative sort order. See Builder.withSortOrder(...).
+     * @param serializer Serializer<T> to use when sorting.
+     * @param sortOrder The fields to order values by.
+     * @return Config instance that can be used to set options and in the end create a new instance.
+     */
+    public static <T> Builder<T> newSorter(Serializer<T> serializer, SortOrder<T> sortOrder) {
+        return new Builder<T>(serializer, null).withSortOrder(sortOrder);
+    }
+
     public static class Builder<T> {
 
         private final Serializer<T> serializer;
-        private final Comparator<T> comparator;
+        private Comparator<T> comparator;
 
         private File tempDirectory;
         private int maxOpenFiles = 25;
         private int chunkSize = 1000;
+        private int residualSize = 0;
+        private int partitions = 0;
+        private int hashDistinctSize = 0;
+        private double heapPressureLimit = 0;
+        private int maxChunkSize = 0;
+        private int blockSize = 1024;
+        private int batchSize = 256;
+        private boolean objectReuse = false;
         private boolean cleanup = true;
         private boolean distinct = true;
+        private boolean directIO = false;
+        private Executor executor = DEFAULT_EXECUTOR;
+        private SortResourceManager resourceManager;
 
         private Builder(Serializer<T> serializer, Comparator<T> comparator) {
             this.serializer = serializer;
             this.comparator = comparator;
         }
 
+        private Builder<T> copy() {
+            Builder<T> result = new Builder<T>(serializer, comparator);
+            result.tempDirectory = tempDirectory;
+            result.maxOpenFiles = maxOpenFiles;
+            result.chunkSize = chunkSize;
+            result.residualSize = residualSize;
+            result.partitions = partitions;
+            result.hashDistinctSize = hashDistinctSize;
+            result.heapPressureLimit = heapPressureLimit;
+            result.maxChunkSize = maxChunkSize;
+            result.blockSize = blockSize;
+            result.batchSize = batchSize;
+            result.objectReuse = objectReuse;
+            result.cleanup = cleanup;
+            result.distinct = distinct;
+            result.directIO = directIO;
+            result.executor = executor;
+            result.resourceManager = resourceManager;
+            return result;
+        }
+
         /**
          * Specifies which directory to use when storing temporary files. The
          * default is System.getProperty("java.io.tmpdir").
@@ -97,6 +215,171 @@ public class ExternalMergeSort<T> {
             return this;
         }
 
+        /**
+         * Specifies that chunk sizes adapt to the pressure on the heap, so
+         * that a sort shares the heap with other work in the same JVM. The
+         * pressure is the fraction of the tenured heap that is still in use
+         * after a garbage collection. While it is above the limit, chunks are
+         * written to disk as soon as they hold chunkSize/16 objects, and the
+         * chunk size is halved after every garbage collection, down to
+         * chunkSize/16. While it is below half the limit, the chunk size is
+         * doubled after every garbage collection, up to maxChunkSize. The
+         * default is 0, which disables adaptation.
+         * @param heapPressureLimit The fraction of the tenured heap, between 0 and 1.
+         * @return this
+         */
+        public Builder<T> withHeapPressureLimit(double heapPressureLimit) {
+            this.heapPressureLimit = heapPressureLimit;
+            return this;
+        }
+
+        /**
+         * Specifies the largest size that chunks may grow to when the chunk
+         * size adapts to heap pressure. The default is chunkSize, which means
+         * that chunks only shrink.
+         * @param maxChunkSize The maximum number of objects in a chunk.
+         * @return this
+         */
+        public Builder<T> withMaxChunkSize(int maxChunkSize) {
+            this.maxChunkSize = maxChunkSize;
+            return this;
+        }
+
+        /**
+         * Specifies the maximum number of already sorted objects that the
+         * mergeSort method may keep in memory instead of writing them to
+         * chunk files. The last chunk read is always kept in memory, as it
+         * would otherwise be written and then immediately read back. The
+         * default is 0.
+         * @param residualSize The maximum number of objects kept in memory
+         * in addition to the last chunk.
+         * @return this
+         */
+        public Builder<T> withResidualSize(int residualSize) {
+            this.residualSize = residualSize;
+            return this;
+        }
+
+        /**
+         * Specifies the number of objects in each block of a run file
+         * written by the mergeSortToRunFile method. Every block gets an
+         * entry in the sparse index of the run file. The default is 1024.
+         * @param blockSize The number of objects in a run file block.
+         * @return this
+         */
+        public Builder<T> withBlockSize(int blockSize) {
+            this.blockSize = blockSize;
+            return this;
+        }
+
+        /**
+         * Specifies the number of key range partitions that input larger than
+         * chunkSize is distributed into. The first chunk of the input is sorted
+         * and used as a sample to pick the partition boundaries, and in a single
+         * pass all values are appended to the bucket file of their partition.
+         * The partitions are then sorted in parallel on the configured executor,
+         * in memory when a partition holds no more than chunkSize values, and
+         * concatenated in order. Each value is then written to disk only once,
+         * however large the input is, instead of once per level of partial
+         * merges. The partition buffers, and the partitions sorted in memory,
+         * together hold no more than chunkSize values. Partitions that receive
+         * more than chunkSize values because the sample was not representative
+         * are sorted with an ordinary merge sort, and if a single partition
+         * receives most of the values, as when the input is presorted, the
+         * distribution is given up and the whole input is merge sorted. A
+         * bucket file is only open while values are appended to it or read
+         * from it, so the number of partitions is not limited by the number
+         * of open files. The default is 0, which disables distribution.
+         * @param partitions The number of partitions.
+         * @return this
+         */
+        public Builder<T> withPartitions(int partitions) {
+            this.partitions = partitions;
+            return this;
+        }
+
+        /**
+         * Specifies the number of objects read or written in one call when
+         * the serializer is a BatchSerializer. The default is 256.
+         * @param batchSize The number of objects in each batch.
+         * @return this
+         */
+        public Builder<T> withBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Specifies whether objects read from chunk files may be reused. When
+         * the serializer is a ReusingSerializer each chunk file recycles a small
+         * pool of objects, so that merging allocates next to no new objects.
+         * An object returned by the merge iterator is then only valid until the
+         * next call to next(), and must be copied if it is to be kept. The
+         * default is false.
+         * @param objectReuse If true then reuse objects when merging.
+         * @return this
+         */
+        public Builder<T> withObjectReuse(boolean objectReuse) {
+            this.objectReuse = objectReuse;
+            return this;
+        }
+
+        /**
+         * Specifies that values are ordered by a key extracted from each value,
+         * replacing the comparator given to newSorter. The key of a value is
+         * computed once when a chunk is sorted and once per merge pass, instead
+         * of on every comparison, which pays off when keys are expensive to
+         * compute.
+         * @param keyExtractor Function that extracts the sort key of a value.
+         * @param keyComparator Comparator that orders the sort keys.
+         * @return this
+         */
+        public <K> Builder<T> withSortKey(Function<? super T, ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+            this.comparator = new SortKey<T,K>(keyExtractor, keyComparator);
+            return this;
+        }
+
+        /**
+         * Specifies that values are ordered by a string key extracted from
+         * each value, in the order of String.compareTo. Chunks are then sorted
+         * with a multikey quicksort that inspects each symbol of a prefix that
+         * keys share about once per key, instead of once per comparison, which
+         * pays off for keys like URLs and paths. The sort is stable, like the
+         * comparison sort.
+         * @param keyExtractor Function that extracts the sort key of a value.
+         * @return this
+         */
+        public Builder<T> withStringSortKey(Function<? super T, String> keyExtractor) {
+            this.comparator = RadixSortKey.strings(keyExtractor);
+            return this;
+        }
+
+        /**
+         * Specifies that values are ordered by a byte array key extracted from
+         * each value, in unsigned lexicographic order. Chunks are sorted like
+         * with withStringSortKey(...).
+         * @param keyExtractor Function that extracts the sort key of a value.
+         * @return this
+         */
+        public Builder<T> withBytesSortKey(Function<? super T, byte[]> keyExtractor) {
+            this.comparator = RadixSortKey.bytes(keyExtractor);
+            return this;
+        }
+
+        /**
+         * Specifies that values are ordered by a declarative sort order, e.g.
+         * SortOrder.byLong(getter).thenByString(getter), replacing the
+         * comparator given to newSorter. The order is compiled into a
+         * normalized key per value, so that every comparison is a single long
+         * or byte array comparison.
+         * @param sortOrder The fields to order values by.
+         * @return this
+         */
+        public Builder<T> withSortOrder(SortOrder<T> sortOrder) {
+            this.comparator = sortOrder.comparator();
+            return this;
+        }
+
         /**
          * Specifies whether to remove duplicate values. The default is true.
          * Note that Comparator.compare(A,B) == 0 is used to find duplicate items.
@@ -108,6 +391,41 @@ public class ExternalMergeSort<T> {
             return this;
         }
 
+        /**
+         * Specifies that duplicates are removed with an in-memory hash table
+         * before anything is sorted, as long as the table holds no more than
+         * the given number of distinct values. If the input has no more
+         * distinct values than that then only the distinct values are sorted,
+         * in memory, and no chunk files are written. Otherwise the values in
+         * the table and the rest of the input are sorted as usual. Only used
+         * when 'distinct' is true. The default is 0, which disables the table.
+         * Note that equals and hashCode of the values must be consistent with
+         * the comparator, i.e. a.equals(b) if and only if compare(a,b) == 0.
+         * @param hashDistinctSize Maximum number of distinct values in the table.
+         * @return this
+         */
+        public Builder<T> withHashDistinct(int hashDistinctSize) {
+            this.hashDistinctSize = hashDistinctSize;
+            return this;
+        }
+
+        /**
+         * Specifies whether to write and read chunk files with direct I/O,
+         * bypassing the page cache. Chunk files are written and read only once
+         * per merge pass, so caching them gains little, while spilling large
+         * sorts through the page cache evicts pages that the rest of the
+         * process relies on. Data is written in aligned blocks of about a
+         * megabyte, and read in blocks that share 16 megabytes between the
+         * maxOpenFiles files of a merge. Falls back to regular I/O where the file system does not
+         * support direct I/O. The default is false.
+         * @param directIO If true then use direct I/O for chunk files.
+         * @return this
+         */
+        public Builder<T> withDirectIO(boolean directIO) {
+            this.directIO = directIO;
+            return this;
+        }
+
         /**
          * Specifies whether to remove temporary files when
          * MergeIterator.close() is called. The default is true.
@@ -119,6 +437,36 @@ public class ExternalMergeSort<T> {
             return this;
         }
 
+        /**
+         * Specifies the executor that runs the sorting and merging done by
+         * mergeSortAsync and mergeSortPublisher, the final merge of mergeSortTo
+         * and the sorting of partitions. The work does blocking I/O,
+         * so an executor with virtual threads is a good fit where available.
+         * The default is a shared pool of daemon threads.
+         * @param executor The executor to run asynchronous sorts on.
+         * @return this
+         */
+        public Builder<T> withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Specifies a resource manager that this sort shares memory, open
+         * files, I/O threads and temporary disk space with other sorts
+         * through. Each mergeSort waits for a grant of memory and open files,
+         * and runs with a chunk size and fan-in no larger than the grant.
+         * The executor is set to the executor of the manager, unless
+         * withExecutor is called afterwards.
+         * @param resourceManager The resource manager.
+         * @return this
+         */
+        public Builder<T> withResourceManager(SortResourceManager resourceManager) {
+            this.resourceManager = resourceManager;
+            this.executor = resourceManager.getExecutor();
+            return this;
+        }
+
         /**
          * Create an instance of ExternalMergeSort with the
          * given configuration options.
@@ -129,6 +477,9 @@ public class ExternalMergeSort<T> {
                 String tmpdir = System.getProperty("java.io.tmpdir");
                 this.tempDirectory = new File(tmpdir);
             }
+            if (maxChunkSize < chunkSize) {
+                this.maxChunkSize = chunkSize;
+            }
             return new ExternalMergeSort<T>(this);
         }
     }
@@ -149,184 +500,181 @@ public class ExternalMergeSort<T> {
     }
 
     /**
-     * Performs an external merge on the values in the iterator.
-     * @param values Iterator containing the data to sort.
-     * @return an iterator the iterates over the sorted result.
-     * @throws IOException if something fails when doing I/O.
+     * An optional extension of Serializer that deserializes into existing
+     * objects. It is used when object reuse is enabled, see
+     * Builder.withObjectReuse(boolean).
+     *
+     * @param <T> The type of objects to be sorted.
      */
-    public CloseableIterator<T> mergeSort(Iterator<T> values) throws IOException {
-        ChunkSizeIterator<T> csi = new ChunkSizeIterator<T>(values, config.chunkSize);
-        if (csi.isMultipleChunks()) {
-            List<File> sortedChunks = writeSortedChunks(csi);
-            return mergeSortedChunks(sortedChunks);
-        } else {
-            if (config.distinct) {
-                SortedSet<T> list = new TreeSet<T>(comparator);
-                while (csi.hasNext()) {
-                    list.add(csi.next());
-                }
-                return new DelegatingMergeIterator<T>(list.iterator());
-            } else {
-                List<T> list = new ArrayList<T>(csi.getHeadSize());
-                while (csi.hasNext()) {
-                    list.add(csi.next());
-                }
-                Collections.sort(list, comparator);
-                return new DelegatingMergeIterator<T>(list.iterator());
-            }
+    public static interface ReusingSerializer<T> extends Serializer<T> {
+
+        ValueReader<T> createValueReader(InputStream input) throws IOException;
+
+        public static interface ValueReader<T> {
+
+            /**
+             * Reads the next object, deserializing into the given object if possible.
+             * All state of the reused object must be overwritten.
+             * @param reuse The object to reuse, or null if a new object must be created.
+             * @return the object read, which may or may not be the reused object, or
+             * null if there are no more objects.
+             */
+            T readInto(T reuse) throws IOException;
+
         }
+
     }
 
-    private static class DelegatingMergeIterator<T> implements CloseableIterator<T> {
+    /**
+     * An optional extension of Serializer that reads and writes objects in
+     * batches. When the serializer implements this interface the chunk files
+     * are written and merged batch by batch, which avoids the per-object
+     * iterator overhead. The batches are Object arrays, since arrays of the
+     * type parameter cannot be created, and every element of a batch is a T.
+     *
+     * @param <T> The type of objects to be sorted.
+     */
+    public static interface BatchSerializer<T> extends Serializer<T> {
 
-        private final Iterator<T> nested;
+        BatchReader<T> createReader(InputStream input) throws IOException;
 
-        private DelegatingMergeIterator(Iterator<T> nested) {
-            this.nested = nested;
-        }
+        BatchWriter<T> createWriter(OutputStream out) throws IOException;
 
-        @Override
-        public boolean hasNext() {
-            return nested.hasNext();
-        }
+        public static interface BatchReader<T> {
 
-        @Override
-        public T next() {
-            return nested.next();
-        }
+            /**
+             * Reads up to dst.length objects of type T into the array.
+             * @return the number of objects read, or 0 if there are no more objects.
+             */
+            int readBatch(Object[] dst) throws IOException;
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
         }
 
-        @Override
-        public void close() throws IOException {
-            // nothing to do here
+        public static interface BatchWriter<T> extends Closeable {
+
+            /**
+             * Writes the first n objects in the array, which are of type T.
+             */
+            void writeBatch(Object[] src, int n) throws IOException;
+
+            /**
+             * Completes and flushes the written data. The underlying output
+             * stream is not closed.
+             */
+            @Override
+            void close() throws IOException;
+
         }
 
     }
 
     /**
-     * Returns an iterator over the sorted result. Takes a list of already sorted chunk files as
-     * input. Note that this method is normally used with one of the writeSortedChunks methods.
-     * @param sortedChunks a list of sorted chunk files
+     * Performs an external merge on the values in the iterator.
+     * @param values Iterator containing the data to sort.
      * @return an iterator the iterates over the sorted result.
      * @throws IOException if something fails when doing I/O.
      */
-    public CloseableIterator<T> mergeSortedChunks(List<File> sortedChunks) throws IOException {
-        return mergeSortedChunksNoPartialMerge(partialMerge(sortedChunks));
+    public CloseableIterator<T> mergeSort(Iterator<T> values) throws IOException {
+        if (config.resourceManager != null && grant == null) {
+            return mergeSortWithGrant(values);
+        }
+        if (config.distinct && config.hashDistinctSize > 0) {
+            return mergeSortHashDistinct(values);
+        }
+        return mergeSortChunks(values);
     }
 
-    private CloseableIterator<T> mergeSortedChunksNoPartialMerge(List<File> sortedChunks) throws IOException {
-        if (debugMerge) {
-            System.out.println("Merging chunks: " + sortedChunks.size());
-        }
-        if (sortedChunks.size() == 1) {
-            File sortedChunk = sortedChunks.get(0);
-            return new ChunkFile<T>(sortedChunk, serializer, comparator, config.cleanup);
+    private CloseableIterator<T> mergeSortChunks(Iterator<T> values) throws IOException {
+        ChunkSizeIterator<T> csi = new ChunkSizeIterator<T>(values, config.chunkSize);
+        if (csi.isMultipleChunks()) {
+            if (config.partitions > 1) {
+                return distributionSort(csi);
+            }
+            return mergeSortMultipleChunks(csi, null);
         } else {
-            List<ChunkFile<T>> cfs = new ArrayList<ChunkFile<T>>(sortedChunks.size());
-            for  (File file : sortedChunks) {
-                cfs.add(new ChunkFile<T>(file, serializer, comparator, config.cleanup));
+            List<T> list = new ArrayList<T>(csi.getHeadSize());
+            while (csi.hasNext()) {
+                list.add(csi.next());
             }
-            return new MergeSortedIterator<T,ChunkFile<T>>(cfs, comparator, config.distinct);
+            return new DelegatingMergeIterator<T>(sortChunk(list).iterator());
         }
     }
 
-    private List<File> partialMerge(List<File> sortedChunks) throws IOException {
-        List<File> result = sortedChunks;
-        while (result.size() > config.maxOpenFiles) {
-            if (debugMerge) {
-                System.out.println("----------------------------");
-                System.out.println("Partial merge start: " + result.size());
-            }
-            result = partialSubMerge(result);
-            if (debugMerge && result.size() <= config.maxOpenFiles) {
-                System.out.println("Partial merge end: " + result.size());
+    /**
+     * Removes duplicates with a hash table while the distinct values fit in
+     * it. The table keeps the first of equal values, like sorting does.
+     */
+    private CloseableIterator<T> mergeSortHashDistinct(Iterator<T> input) throws IOException {
+        Set<T> table = new HashSet<T>();
+        while (input.hasNext()) {
+            if (table.add(input.next()) && table.size() > config.hashDistinctSize) {
+                if (debugMerge) {
+                    System.out.printf("Hash table overflow (hashDistinctSize=%d)\n", config.hashDistinctSize);
+                }
+                // the table is drained as its values are read into chunks
+                return mergeSortChunks(new DrainingIterator<T>(table.iterator(), input));
             }
         }
-        return result;
+        return new DelegatingMergeIterator<T>(sortChunk(new ArrayList<T>(table)).iterator());
     }
 
-    private List<File> partialSubMerge(List<File> sortedChunks) throws IOException {
-        int chunks = sortedChunks.size();
-
-        if (chunks > config.maxOpenFiles) {
-
-            int chunksToMerge = Math.min(Math.max(2, chunks - config.maxOpenFiles), config.maxOpenFiles);
+    /**
+     * Iterates over the values of a collection, removing each value as it is
+     * returned, and then over the rest of the input.
+     */
+    private static class DrainingIterator<T> implements Iterator<T> {
 
-            if (debugMerge) {
-                System.out.printf("chunks: %d\n", chunks);
-                System.out.printf("chunksToMerge: %d = Math.min(Math.max(2 - %d), %d)\n", chunksToMerge, chunks, config.maxOpenFiles, config.maxOpenFiles);
-            }
+        private final Iterator<T> drained;
+        private final Iterator<T> input;
 
-            List<File> headList = sortedChunks.subList(0, chunksToMerge);
-            List<File> tailList = sortedChunks.subList(chunksToMerge, sortedChunks.size());
-            if (debugMerge) {
-                System.out.printf("head: %d tail: %d\n", headList.size(), tailList.size());
-            }
+        private DrainingIterator(Iterator<T> drained, Iterator<T> input) {
+            this.drained = drained;
+            this.input = input;
+        }
 
-            List<File> result = new ArrayList<File>(tailList);
-            result.add(mergeSubList(headList));
+        @Override
+        public boolean hasNext() {
+            return drained.hasNext() || input.hasNext();
+        }
 
-            if (debugMerge) {
-                System.out.printf("chunks result: %d\n", result.size());
+        @Override
+        public T next() {
+            if (drained.hasNext()) {
+                T value = drained.next();
+                drained.remove();
+                return value;
             }
-
-            return result;
+            return input.next();
         }
-        return sortedChunks;
-    }
 
-    private File mergeSubList(List<File> subList) throws IOException {
-        CloseableIterator<T> iter = mergeSortedChunksNoPartialMerge(subList);
-        try {
-            return writeChunk("exmeso-merged-", iter);
-        } finally {
-            iter.close();
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
-    }
-
-    private static class ChunkFile<T> implements Comparable<ChunkFile<T>>, CloseableIterator<T> {
-
-        private final File file;
-        private final Comparator<T> comparator;
-        private final boolean cleanup;
-
-        private final InputStream input;
-        private final Iterator<T> iter;
 
-        private T next;
+    }
 
-        private ChunkFile(final File file, Serializer<T> serializer, Comparator<T> comparator, boolean cleanup) throws IOException {
-            this.file = file;
-            this.comparator = comparator;
-            this.cleanup = cleanup;
-            input = new FileInputStream(file);
-            iter = serializer.readValues(input);
-            readNext();
-        }
+    /**
+     * Iterates over the values of one iterator and then the other.
+     */
+    private static class ConcatIterator<T> implements Iterator<T> {
 
-        @Override
-        public String toString() {
-            return "Chunk[next=" + next + ", file=" + file + "]";
-        }
+        private final Iterator<T> first;
+        private final Iterator<T> second;
 
-        private void readNext() {
-            this.next = iter.hasNext() ? iter.next() : null;
+        private ConcatIterator(Iterator<T> first, Iterator<T> second) {
+            this.first = first;
+            this.second = second;
         }
 
         @Override
         public boolean hasNext() {
-            return next != null;
+            return first.hasNext() || second.hasNext();
         }
 
         @Override
         public T next() {
-            T result = next;
-            readNext();
-            return result;
+            return first.hasNext() ? first.next() : second.next();
         }
 
         @Override
@@ -334,12 +682,1680 @@ public class ExternalMergeSort<T> {
             throw new UnsupportedOperationException();
         }
 
-        @Override
-        public int compareTo(ChunkFile<T> o) {
-            return comparator.compare(next, o.next);
-        }
+    }
 
-        @Override
+    /**
+     * Waits for a grant from the resource manager, and sorts with a chunk size
+     * and fan-in that fit the grant. The grant is held until the result is
+     * closed, since the last chunk stays in memory until then.
+     */
+    private CloseableIterator<T> mergeSortWithGrant(Iterator<T> values) throws IOException {
+        SortResourceManager manager = config.resourceManager;
+        SortResourceManager.Grant grant = manager.acquire(config.chunkSize + config.residualSize, config.maxOpenFiles + 1);
+        try {
+            Builder<T> granted = config.copy();
+            granted.chunkSize = Math.min(config.chunkSize, grant.getValues());
+            granted.residualSize = grant.getValues() - granted.chunkSize;
+            granted.maxChunkSize = granted.chunkSize;
+            granted.hashDistinctSize = Math.min(config.hashDistinctSize, grant.getValues());
+            // one file is left for the output of partial merges
+            granted.maxOpenFiles = grant.getFiles() - 1;
+            CloseableIterator<T> result = new ExternalMergeSort<T>(granted, grant).mergeSort(values);
+            return new GrantIterator<T>(result, manager, grant);
+        } catch (IOException e) {
+            manager.release(grant);
+            throw e;
+        } catch (RuntimeException e) {
+            manager.release(grant);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the grant to the resource manager when the result is closed.
+     */
+    private static class GrantIterator<T> implements CloseableIterator<T> {
+
+        private final CloseableIterator<T> nested;
+        private final SortResourceManager manager;
+        private final SortResourceManager.Grant grant;
+
+        private GrantIterator(CloseableIterator<T> nested, SortResourceManager manager, SortResourceManager.Grant grant) {
+            this.nested = nested;
+            this.manager = manager;
+            this.grant = grant;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nested.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return nested.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                nested.close();
+            } finally {
+                manager.release(grant);
+            }
+        }
+
+    }
+
+    /**
+     * Performs an external merge on the values in the iterator without blocking
+     * the calling thread. The chunk files are written and partially merged on
+     * the configured executor, and the future completes with an iterator over
+     * the sorted result. Note that the values iterator is consumed on the
+     * executor, so it must not be used by the caller after this call.
+     * @param values Iterator containing the data to sort.
+     * @return a future that completes with an iterator over the sorted result.
+     */
+    public CompletableFuture<CloseableIterator<T>> mergeSortAsync(final Iterator<T> values) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return mergeSort(values);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, config.executor);
+    }
+
+    /**
+     * Returns a publisher that performs an external merge on the values in the
+     * iterator and publishes the sorted result. The sort starts on the configured
+     * executor when the subscriber first requests values, and sorted values are
+     * only read from the merge when the subscriber has requested them. The
+     * publisher accepts a single subscriber.
+     * @param values Iterator containing the data to sort.
+     * @return a publisher of the sorted result.
+     */
+    public Flow.Publisher<T> mergeSortPublisher(Iterator<T> values) {
+        return new SortPublisher<T>(this, values, config.executor);
+    }
+
+    /**
+     * Returns a collector that sorts the values of a stream, spilling sorted run
+     * files to disk whenever a segment of the stream has collected chunkSize
+     * values. The segments of a parallel stream write their runs concurrently.
+     * The result is a stream over the sorted values whose spliterator splits by
+     * key range, so that downstream parallel stages merge disjoint key ranges
+     * concurrently. Close the result stream to remove the run files. Note that
+     * the serializer must be thread-safe when the collector is used with a
+     * parallel stream, and that each segment buffers up to chunkSize values
+     * until it is spilled or combined with another. A parallel stream splits
+     * into many segments, so it may hold several times chunkSize values in
+     * memory, up to chunkSize for each segment that has not been combined yet.
+     * @return a collector that returns a sorted stream.
+     */
+    public Collector<T, ?, Stream<T>> collector() {
+        return Collectors.collectingAndThen(runsCollector(),
+                runs -> StreamSupport.stream(runs.spliterator(), false).onClose(() -> closeUnchecked(runs)));
+    }
+
+    /**
+     * Returns a stream that behaves like stream.sorted(comparator), but that
+     * spills sorted run files to disk when the stream is larger than chunkSize.
+     * The input stream is consumed when the terminal operation of the returned
+     * stream starts. Close the returned stream to remove the run files. The
+     * stream is collected with collector(), so the same notes on thread-safety
+     * and memory apply to parallel streams.
+     * @param stream The stream to sort.
+     * @return a sorted stream.
+     */
+    public Stream<T> sorted(Stream<T> stream) {
+        AtomicReference<SortedRunSpliterator.Runs<T>> sortedRuns = new AtomicReference<SortedRunSpliterator.Runs<T>>();
+        int characteristics = Spliterator.ORDERED | Spliterator.SORTED | Spliterator.NONNULL | (config.distinct ? Spliterator.DISTINCT : 0);
+        return StreamSupport.stream(() -> {
+                    SortedRunSpliterator.Runs<T> runs = stream.collect(runsCollector());
+                    sortedRuns.set(runs);
+                    return runs.spliterator();
+                }, characteristics, stream.isParallel())
+                .onClose(() -> {
+                    try {
+                        SortedRunSpliterator.Runs<T> runs = sortedRuns.get();
+                        if (runs != null) {
+                            closeUnchecked(runs);
+                        }
+                    } finally {
+                        stream.close();
+                    }
+                });
+    }
+
+    /**
+     * Returns a sink that many producer threads can add values to concurrently.
+     * Each producer thread buffers its own chunk and writes its own chunk files,
+     * so ingest is not funneled through a single iterator. Call finish() on the
+     * sink when all producers are done to get an iterator over the sorted
+     * result. Note that the serializer must be thread-safe.
+     * @return a new sink.
+     */
+    public SortSink<T> newSink() {
+        return new SortSink<T>(this, config.chunkSize);
+    }
+
+    /**
+     * Fluent API building an IncrementalSort, which keeps the sorted result in
+     * a directory as leveled runs, so that new data can be merged into it by
+     * sorting only the new data. See IncrementalSort.
+     * @param directory The directory to keep the runs in.
+     * @return Builder instance that can be used to set options and in the end open the IncrementalSort.
+     */
+    public IncrementalSort.Builder<T> newIncrementalSort(File directory) {
+        return new IncrementalSort.Builder<T>(this, directory, comparator, config.distinct);
+    }
+
+    private Collector<T, StreamRuns, SortedRunSpliterator.Runs<T>> runsCollector() {
+        // the values are sorted anyway, so encounter order does not matter
+        return Collector.of(StreamRuns::new, StreamRuns::add, StreamRuns::combine, StreamRuns::finish, Collector.Characteristics.UNORDERED);
+    }
+
+    private static void closeUnchecked(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The mutable result container of the stream collector. Each stream segment
+     * sorts and writes its own run files, and the containers are combined by
+     * concatenating their runs.
+     */
+    private class StreamRuns {
+
+        private List<T> chunk = new ArrayList<T>();
+        private final List<RunFile<T>> runFiles = new ArrayList<RunFile<T>>();
+
+        private void add(T value) {
+            chunk.add(value);
+            if (chunk.size() >= config.chunkSize) {
+                spill();
+            }
+        }
+
+        private StreamRuns combine(StreamRuns other) {
+            runFiles.addAll(other.runFiles);
+            for (T value : other.chunk) {
+                add(value);
+            }
+            return this;
+        }
+
+        private void spill() {
+            try {
+                runFiles.add(writeRunFile("exmeso-sorted-", sortChunk(chunk).iterator()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            chunk = new ArrayList<T>();
+        }
+
+        private SortedRunSpliterator.Runs<T> finish() {
+            try {
+                List<RunFile<T>> result = runFiles;
+                while (result.size() > config.maxOpenFiles) {
+                    int chunksToMerge = Math.min(Math.max(2, result.size() - config.maxOpenFiles), config.maxOpenFiles);
+                    List<RunFile<T>> merged = new ArrayList<RunFile<T>>(result.subList(chunksToMerge, result.size()));
+                    merged.add(mergeRunFiles(result.subList(0, chunksToMerge)));
+                    result = merged;
+                }
+                return new SortedRunSpliterator.Runs<T>(result, sortChunk(chunk), comparator, config.distinct, config.cleanup, config.blockSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+    }
+
+    private RunFile<T> writeRunFile(String prefix, Iterator<T> values) throws IOException {
+        RunFile<T> runFile = RunFile.write(createChunkFile(prefix), values, serializer, comparator, config.blockSize);
+        if (config.resourceManager != null) {
+            config.resourceManager.addTempFile(runFile.getFile());
+        }
+        return runFile;
+    }
+
+    private RunFile<T> mergeRunFiles(List<RunFile<T>> runFiles) throws IOException {
+        List<Chunk<T>> chunks = new ArrayList<Chunk<T>>(runFiles.size());
+        for (RunFile<T> runFile : runFiles) {
+            chunks.add(new ChunkIterator<T>(runFile.iterator(), comparator));
+        }
+        MergeSortedIterator<T,Chunk<T>> iter = Chunk.merge(chunks, comparator, config.distinct);
+        try {
+            return writeRunFile("exmeso-merged-", iter);
+        } finally {
+            iter.close();
+            if (config.cleanup) {
+                for (RunFile<T> runFile : runFiles) {
+                    runFile.getFile().delete();
+                }
+            }
+        }
+    }
+
+    private CloseableIterator<T> distributionSort(Iterator<T> input) throws IOException {
+        // the first chunk is the sample that the partition boundaries are picked from
+        List<T> sample = sortChunk(readChunk(input));
+        List<T> splitters = new ArrayList<T>(config.partitions - 1);
+        for (int i=1; i < config.partitions; i++) {
+            T splitter = sample.get((int)((long)i * sample.size() / config.partitions));
+            if (splitters.isEmpty() || comparator.compare(splitters.get(splitters.size() - 1), splitter) < 0) {
+                splitters.add(splitter);
+            }
+        }
+        if (splitters.isEmpty()) {
+            // the sample holds a single distinct value, so there are no boundaries to pick
+            return mergeSortMultipleChunks(new ConcatIterator<T>(sample.iterator(), input), null);
+        }
+        Distribution distribution = new Distribution(splitters);
+        try {
+            if (distribution.distribute(sample.iterator()) && distribution.distribute(input)) {
+                distribution.flush();
+                if (debugMerge) {
+                    System.out.printf("Partitions %d (chunkSize=%d)\n", distribution.partitions.size(), config.chunkSize);
+                }
+                return new PartitionIterator(distribution.partitions);
+            }
+            // the sample was not representative, so the values distributed so
+            // far are merge sorted together with the rest of the input
+            distribution.flush();
+            if (debugMerge) {
+                System.out.printf("Partitions skewed after %d values (chunkSize=%d)\n", distribution.distributed, config.chunkSize);
+            }
+            PartitionValues values = new PartitionValues(distribution.partitions);
+            try {
+                return mergeSortMultipleChunks(new ConcatIterator<T>(values, input), null);
+            } finally {
+                values.close();
+            }
+        } catch (IOException e) {
+            deletePartitions(distribution.partitions);
+            throw e;
+        } catch (RuntimeException e) {
+            deletePartitions(distribution.partitions);
+            throw e;
+        }
+    }
+
+    /**
+     * Distributes values into key range partitions. The partition buffers
+     * together hold no more than chunkSize values, and when they are full the
+     * largest buffer is appended to the bucket file of its partition as one
+     * length prefixed segment, so each partition has a single file however
+     * large the input is.
+     */
+    private class Distribution {
+
+        private final List<T> splitters;
+        private final List<Partition<T>> partitions;
+        private int buffered;
+        private long distributed;
+
+        private Distribution(List<T> splitters) {
+            this.splitters = splitters;
+            this.partitions = new ArrayList<Partition<T>>(splitters.size() + 1);
+            for (int i=0; i <= splitters.size(); i++) {
+                partitions.add(new Partition<T>());
+            }
+        }
+
+        /**
+         * @return false if distribution was stopped because a single partition
+         * received most of the values.
+         */
+        private boolean distribute(Iterator<T> input) throws IOException {
+            while (input.hasNext()) {
+                T value = input.next();
+                // equal values always end up in the same partition, so that each
+                // partition can remove its own duplicates
+                int low = 0;
+                int high = splitters.size();
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (comparator.compare(value, splitters.get(mid)) < 0) {
+                        high = mid;
+                    } else {
+                        low = mid + 1;
+                    }
+                }
+                Partition<T> partition = partitions.get(low);
+                partition.buffer.add(value);
+                partition.count++;
+                distributed++;
+                if (++buffered >= config.chunkSize) {
+                    if (isSkewed()) {
+                        return false;
+                    }
+                    Partition<T> largest = partition;
+                    for (Partition<T> p : partitions) {
+                        if (p.buffer.size() > largest.buffer.size()) {
+                            largest = p;
+                        }
+                    }
+                    append(largest);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The distribution is skewed when, after at least two chunks, the
+         * largest partition holds more than halfway between its fair share
+         * and all of the values, as it does when the input is presorted or its
+         * distribution drifts away from the sample.
+         */
+        private boolean isSkewed() {
+            if (distributed < 2L * config.chunkSize) {
+                return false;
+            }
+            long largest = 0;
+            for (Partition<T> partition : partitions) {
+                largest = Math.max(largest, partition.count);
+            }
+            return 2 * largest > distributed / partitions.size() + distributed;
+        }
+
+        /**
+         * Appends the buffer to the end of the bucket file. The bucket file is
+         * only open while the segment is written, so distribution holds a
+         * single file open however many partitions there are.
+         */
+        private void append(Partition<T> partition) throws IOException {
+            if (partition.bucket == null) {
+                partition.bucket = createChunkFile("exmeso-partition-");
+            }
+            FileChannel channel = FileChannel.open(partition.bucket.toPath(), StandardOpenOption.WRITE);
+            try {
+                long start = channel.size();
+                channel.position(start + 8);
+                OutputStream out = new SegmentOutputStream(Channels.newOutputStream(channel));
+                writeValues(partition.buffer.iterator(), out);
+                out.flush();
+                long end = channel.position();
+                ByteBuffer length = ByteBuffer.allocate(8).putLong(0, end - start - 8);
+                while (length.hasRemaining()) {
+                    channel.write(length, start + length.position());
+                }
+            } finally {
+                channel.close();
+            }
+            buffered -= partition.buffer.size();
+            partition.buffer.clear();
+        }
+
+        /**
+         * Appends the remaining buffers, so that the partitions can be read
+         * back without holding any values.
+         */
+        private void flush() throws IOException {
+            for (Partition<T> partition : partitions) {
+                if (!partition.buffer.isEmpty()) {
+                    append(partition);
+                }
+            }
+            if (config.resourceManager != null) {
+                for (Partition<T> partition : partitions) {
+                    if (partition.bucket != null) {
+                        config.resourceManager.addTempFile(partition.bucket);
+                    }
+                }
+            }
+        }
+
+    }
+
+    private void deletePartitions(List<Partition<T>> partitions) {
+        if (config.cleanup) {
+            for (Partition<T> partition : partitions) {
+                if (partition.bucket != null) {
+                    partition.bucket.delete();
+                }
+            }
+        }
+    }
+
+    private List<T> readPartition(Partition<T> partition) throws IOException {
+        List<T> result = new ArrayList<T>((int)partition.count);
+        PartitionValues values = new PartitionValues(Collections.singletonList(partition));
+        try {
+            while (values.hasNext()) {
+                result.add(values.next());
+            }
+        } finally {
+            values.close();
+        }
+        return result;
+    }
+
+    /**
+     * The values in a key range of the input. The values are buffered while
+     * they are distributed, and then written unsorted to the bucket file as a
+     * sequence of segments, each prefixed by its length in bytes.
+     */
+    private static class Partition<T> {
+
+        private final List<T> buffer = new ArrayList<T>();
+        private File bucket;
+        private long count;
+        private CompletableFuture<List<T>> sorted;
+
+    }
+
+    /**
+     * Keeps the bucket file open when the serializer closes the stream it
+     * writes a segment to.
+     */
+    private static class SegmentOutputStream extends FilterOutputStream {
+
+        private SegmentOutputStream(OutputStream out) {
+            super(new BufferedOutputStream(out, 65536));
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
+    /**
+     * Reads one segment of a bucket file. The serializer cannot read ahead
+     * into the next segment, and closing the stream skips what it left unread.
+     */
+    private static class SegmentInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        private SegmentInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return len == 0 ? 0 : -1;
+            }
+            int n = in.read(b, off, (int)Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            while (remaining > 0 && read() >= 0) {
+                long skipped = in.skip(remaining);
+                if (skipped > 0) {
+                    remaining -= skipped;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Reads the values of one or more partitions, segment by segment from
+     * their bucket files. The values are kept by the caller, so objects are
+     * not reused even if object reuse is enabled.
+     */
+    private class PartitionValues implements CloseableIterator<T> {
+
+        private final Iterator<Partition<T>> partitions;
+        private File bucket;
+        private DataInputStream input;
+        private long remaining;
+        private Chunk<T> current;
+
+        private PartitionValues(List<Partition<T>> partitions) {
+            this.partitions = partitions.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (current == null || !current.hasNext()) {
+                    if (current != null) {
+                        current.close();
+                        current = null;
+                    }
+                    if (input != null && remaining > 0) {
+                        long length = input.readLong();
+                        remaining -= 8 + length;
+                        InputStream segment = new SegmentInputStream(input, length);
+                        if (serializer instanceof BatchSerializer) {
+                            current = new BatchChunkFile<T>(bucket, segment, (BatchSerializer<T>)serializer, comparator, false, config.batchSize);
+                        } else {
+                            current = new ChunkFile<T>(bucket, segment, serializer, comparator, false);
+                        }
+                        continue;
+                    }
+                    closeBucket();
+                    if (!partitions.hasNext()) {
+                        return false;
+                    }
+                    File next = partitions.next().bucket;
+                    if (next != null) {
+                        bucket = next;
+                        remaining = next.length();
+                        input = new DataInputStream(openChunkInput(next));
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void closeBucket() throws IOException {
+            if (input != null) {
+                input.close();
+                input = null;
+                if (config.cleanup) {
+                    bucket.delete();
+                }
+                bucket = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+            } finally {
+                closeBucket();
+                while (partitions.hasNext()) {
+                    File next = partitions.next().bucket;
+                    if (next != null && config.cleanup) {
+                        next.delete();
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Concatenates the sorted partitions. The next few partitions are read
+     * ahead and sorted in parallel on the executor while the current one is
+     * being iterated over, as long as the partitions held in memory together
+     * have no more than chunkSize values. A partition that is too large to
+     * sort in memory is merge sorted on its own when it is reached. All
+     * reading is done by the calling thread, so the serializer is never used
+     * concurrently.
+     */
+    private class PartitionIterator implements CloseableIterator<T> {
+
+        private final List<Partition<T>> partitions;
+        private final LinkedList<Partition<T>> pending = new LinkedList<Partition<T>>();
+        private final int parallelism = Runtime.getRuntime().availableProcessors();
+        private int submitted;
+        // the number of values held by the pending partitions and the current one
+        private long resident;
+        private long currentSize;
+        private CloseableIterator<T> current;
+
+        private PartitionIterator(List<Partition<T>> partitions) throws IOException {
+            this.partitions = partitions;
+            submit();
+        }
+
+        private long residentSize(Partition<T> partition) {
+            // a merge sort keeps up to a chunk in memory
+            return Math.min(partition.count, config.chunkSize);
+        }
+
+        private void submit() throws IOException {
+            while (pending.size() < parallelism && submitted < partitions.size()) {
+                Partition<T> partition = partitions.get(submitted);
+                long size = residentSize(partition);
+                if (resident > 0 && resident + size > config.chunkSize) {
+                    return;
+                }
+                submitted++;
+                resident += size;
+                // partitions too large to sort in memory are merge sorted when reached
+                if (partition.count <= config.chunkSize) {
+                    final List<T> values = readPartition(partition);
+                    partition.sorted = CompletableFuture.supplyAsync(() -> sortChunk(values), config.executor);
+                }
+                pending.add(partition);
+            }
+        }
+
+        private CloseableIterator<T> open(Partition<T> partition) throws IOException {
+            if (partition.sorted != null) {
+                try {
+                    return new DelegatingMergeIterator<T>(partition.sorted.join().iterator());
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException)e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            PartitionValues values = new PartitionValues(Collections.singletonList(partition));
+            try {
+                return mergeSortMultipleChunks(values, null);
+            } finally {
+                values.close();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (current == null || !current.hasNext()) {
+                    if (current != null) {
+                        CloseableIterator<T> iter = current;
+                        current = null;
+                        resident -= currentSize;
+                        iter.close();
+                    }
+                    if (pending.isEmpty()) {
+                        submit();
+                        if (pending.isEmpty()) {
+                            return false;
+                        }
+                    }
+                    Partition<T> partition = pending.removeFirst();
+                    currentSize = residentSize(partition);
+                    current = open(partition);
+                    submit();
+                }
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            // partitions that were read ahead have already removed their files
+            deletePartitions(pending);
+            pending.clear();
+            deletePartitions(partitions.subList(submitted, partitions.size()));
+            submitted = partitions.size();
+        }
+
+    }
+
+    /**
+     * Performs an external merge on the values in the iterator, recording every
+     * completed chunk file in the given manifest. If the sort is interrupted then
+     * it can be continued with the resume method. The manifest file is deleted
+     * when the returned iterator is closed if 'cleanup' is set to true.
+     * @param values Iterator containing the data to sort.
+     * @param manifest An empty manifest in which to record completed chunk files.
+     * @return an iterator the iterates over the sorted result.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public CloseableIterator<T> mergeSort(Iterator<T> values, SortManifest manifest) throws IOException {
+        if (!manifest.isEmpty()) {
+            throw new IllegalArgumentException("Manifest is not empty, use resume instead: " + manifest.getFile());
+        }
+        return resume(values, manifest);
+    }
+
+    /**
+     * Continues an external merge that was interrupted. Input values that have
+     * already been written to chunk files are skipped, and the partial merges
+     * recorded in the manifest are not repeated. If 'cleanup' is set to true
+     * then chunk files in the temporary directory that the manifest does not
+     * list, which the interrupted sort left behind, are deleted, so the
+     * temporary directory must not be shared with a sort that is running.
+     * @param values Iterator containing the same data that was given to the
+     * interrupted sort, starting from the beginning.
+     * @param manifest The manifest of the interrupted sort.
+     * @return an iterator the iterates over the sorted result.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public CloseableIterator<T> resume(Iterator<T> values, SortManifest manifest) throws IOException {
+        if (config.cleanup) {
+            manifest.deleteUnlistedFiles(config.tempDirectory, "exmeso-sorted-", "exmeso-merged-");
+        }
+        for (long i=0; i < manifest.getInputCount(); i++) {
+            if (!values.hasNext()) {
+                throw new IOException("Input has fewer values than recorded in manifest: " + manifest.getInputCount());
+            }
+            values.next();
+        }
+        CloseableIterator<T> result;
+        if (manifest.getRuns().isEmpty()) {
+            ChunkSizeIterator<T> csi = new ChunkSizeIterator<T>(values, config.chunkSize);
+            if (csi.isMultipleChunks()) {
+                result = mergeSortMultipleChunks(csi, manifest);
+            } else {
+                result = mergeSort(csi);
+            }
+        } else {
+            result = mergeSortMultipleChunks(values, manifest);
+        }
+        return new ManifestMergeIterator<T>(result, manifest, config.cleanup);
+    }
+
+    /**
+     * Performs an external merge on the values in the iterator and writes the
+     * sorted result to an indexed run file. The run file supports seeking and
+     * range scans without reading the whole file.
+     * @param values Iterator containing the data to sort.
+     * @param file The run file to write.
+     * @return the written run file.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public RunFile<T> mergeSortToRunFile(Iterator<T> values, File file) throws IOException {
+        if (config.objectReuse) {
+            throw new IllegalStateException("Run files keep references to sorted objects, so object reuse is not supported");
+        }
+        CloseableIterator<T> sorted = mergeSort(values);
+        try {
+            return RunFile.write(file, sorted, serializer, comparator, config.blockSize);
+        } finally {
+            sorted.close();
+        }
+    }
+
+    /**
+     * Performs an external merge on the values in the iterator and writes the
+     * sorted result to the output stream using the given serializer. The final
+     * merge runs on the configured executor and hands batches of merged values
+     * to the calling thread, which encodes them, so that merging and writing
+     * the output overlap. The output stream is not closed.
+     * @param values Iterator containing the data to sort.
+     * @param outSerializer Serializer used to write the sorted result.
+     * @param out The stream to write the sorted result to.
+     * @throws IOException if something fails when doing I/O.
+     */
+    @SuppressWarnings("unchecked")
+    public void mergeSortTo(Iterator<T> values, Serializer<T> outSerializer, OutputStream out) throws IOException {
+        if (config.objectReuse) {
+            throw new IllegalStateException("Merged values are queued before they are written, so object reuse is not supported");
+        }
+        BatchHandoff<T> handoff = new BatchHandoff<T>(mergeSort(values), config.batchSize, HANDOFF_CAPACITY);
+        try {
+            handoff.start(config.executor);
+            if (outSerializer instanceof BatchSerializer) {
+                BatchSerializer.BatchWriter<T> writer = ((BatchSerializer<T>)outSerializer).createWriter(out);
+                try {
+                    Object[] batch;
+                    while ((batch = handoff.take()) != null) {
+                        writer.writeBatch(batch, batch.length);
+                    }
+                } finally {
+                    writer.close();
+                }
+            } else {
+                outSerializer.writeValues(handoff.iterator(), out);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            handoff.finish();
+        }
+    }
+
+    /**
+     * Performs an external merge on the values in the iterator once for each
+     * of the sorters, reading the input only once. Each chunk is read like the
+     * first sorter reads it, and the same deserialized values are then sorted
+     * and written once per sorter, using its comparator, serializer and
+     * settings. The chunk files of each sorter are merged independently, so
+     * the returned iterators can be consumed in any order. Close all of them
+     * to remove the chunk files. Since the input is read once for all sorters,
+     * they must all have the same chunk size, and none of them may use
+     * residual chunks, partitions, hash distinct or a resource manager. The
+     * comparator, serializer, distinct, and the settings for writing and
+     * merging the chunk files may differ between the sorters.
+     * @param values Iterator containing the data to sort.
+     * @param sorters The sorters, one for each order to sort the values in.
+     * @return one iterator over the sorted result for each sorter, in the
+     * order of the sorters.
+     * @throws IOException if something fails when doing I/O.
+     * @throws IllegalArgumentException if the sorters read the input differently.
+     */
+    public static <T> List<CloseableIterator<T>> mergeSortAll(Iterator<T> values, List<ExternalMergeSort<T>> sorters) throws IOException {
+        if (sorters.isEmpty()) {
+            throw new IllegalArgumentException("At least one sorter must be given");
+        }
+        ExternalMergeSort<T> first = sorters.get(0);
+        for (ExternalMergeSort<T> sorter : sorters) {
+            Builder<T> config = sorter.config;
+            if (config.chunkSize != first.config.chunkSize) {
+                throw new IllegalArgumentException("All sorters must have the same chunk size: " + config.chunkSize + " != " + first.config.chunkSize);
+            }
+            if (config.residualSize > 0 || config.partitions > 1 || config.hashDistinctSize > 0 || config.resourceManager != null) {
+                throw new IllegalArgumentException("Sorters cannot use residual chunks, partitions, hash distinct or a resource manager");
+            }
+        }
+        List<CloseableIterator<T>> result = new ArrayList<CloseableIterator<T>>(sorters.size());
+        ChunkSizeIterator<T> csi = new ChunkSizeIterator<T>(values, first.config.chunkSize);
+        if (!csi.isMultipleChunks()) {
+            List<T> list = new ArrayList<T>(csi.getHeadSize());
+            while (csi.hasNext()) {
+                list.add(csi.next());
+            }
+            // sortChunk sorts a copy, so the list can be shared
+            for (ExternalMergeSort<T> sorter : sorters) {
+                result.add(new DelegatingMergeIterator<T>(sorter.sortChunk(list).iterator()));
+            }
+            return result;
+        }
+        List<List<File>> sortedChunks = new ArrayList<List<File>>(sorters.size());
+        for (int i=0; i < sorters.size(); i++) {
+            sortedChunks.add(new ArrayList<File>());
+        }
+        try {
+            while (true) {
+                List<T> chunk = first.readChunk(csi);
+                if (!csi.hasNext()) {
+                    // like mergeSort, keep the last chunk in memory
+                    for (int i=0; i < sorters.size(); i++) {
+                        ExternalMergeSort<T> sorter = sorters.get(i);
+                        List<File> files = sorter.partialMerge(sortedChunks.get(i), null);
+                        sortedChunks.set(i, files);
+                        result.add(sorter.mergeChunks(files, Collections.singletonList(sorter.sortChunk(chunk)), sorter.config.cleanup));
+                    }
+                    return result;
+                }
+                for (int i=0; i < sorters.size(); i++) {
+                    ExternalMergeSort<T> sorter = sorters.get(i);
+                    sortedChunks.get(i).add(sorter.writeChunk("exmeso-sorted-", sorter.sortChunk(chunk).iterator(), false));
+                }
+            }
+        } catch (IOException e) {
+            abortMergeSortAll(sorters, result, sortedChunks);
+            throw e;
+        } catch (RuntimeException e) {
+            abortMergeSortAll(sorters, result, sortedChunks);
+            throw e;
+        }
+    }
+
+    private static <T> void abortMergeSortAll(List<ExternalMergeSort<T>> sorters, List<CloseableIterator<T>> opened, List<List<File>> sortedChunks) {
+        for (CloseableIterator<T> iter : opened) {
+            try {
+                iter.close();
+            } catch (IOException e) {
+                // ignore, as the original exception is more interesting
+            }
+        }
+        // the chunk files of the opened iterators were handled when closing them
+        for (int i=opened.size(); i < sorters.size(); i++) {
+            if (sorters.get(i).config.cleanup) {
+                for (File file : sortedChunks.get(i)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private CloseableIterator<T> mergeSortMultipleChunks(Iterator<T> input, SortManifest manifest) throws IOException {
+        List<File> sortedChunks = new ArrayList<File>();
+        if (manifest != null) {
+            sortedChunks.addAll(manifest.getRunFiles());
+        }
+        LinkedList<List<T>> residualChunks = new LinkedList<List<T>>();
+        // the number of input values each residual chunk was read from
+        LinkedList<Integer> inputSizes = new LinkedList<Integer>();
+        int residualSize = 0;
+        while (input.hasNext()) {
+            List<T> values = readChunk(input);
+            inputSizes.add(values.size());
+            List<T> chunk = sortChunk(values);
+            residualChunks.add(chunk);
+            residualSize += chunk.size();
+            // spill the oldest chunks unless this was the last one
+            while (input.hasNext() && residualSize > config.residualSize) {
+                List<T> oldest = residualChunks.removeFirst();
+                int inputSize = inputSizes.removeFirst();
+                residualSize -= oldest.size();
+                // the run may only take more chunks from the input when no earlier
+                // chunks are held in memory, so that the runs cover a prefix of the
+                // input, and when there is no manifest, which should record each
+                // chunk as soon as it has been read. It never takes the last chunk
+                // of the input, which stays in memory like any other last chunk
+                boolean extend = manifest == null && residualChunks.isEmpty();
+                SortedRun run = new SortedRun(oldest, extend ? input : Collections.<T>emptyIterator(), true);
+                File chunkFile = writeChunk("exmeso-sorted-", run, manifest != null);
+                if (manifest != null) {
+                    manifest.addRun(chunkFile, run.records, inputSize);
+                }
+                sortedChunks.add(chunkFile);
+                if (run.pending != null) {
+                    residualChunks.add(run.pending);
+                    inputSizes.add(run.pendingInputSize);
+                    residualSize += run.pending.size();
+                }
+            }
+        }
+        if (debugMerge) {
+            System.out.printf("Chunks %d + %d in memory (chunkSize=%d, maxOpenFiles=%d)\n", sortedChunks.size(), residualChunks.size(), config.chunkSize, config.maxOpenFiles);
+        }
+        return mergeChunks(partialMerge(sortedChunks, manifest), residualChunks, config.cleanup);
+    }
+
+    private static class ManifestMergeIterator<T> implements CloseableIterator<T> {
+
+        private final CloseableIterator<T> nested;
+        private final SortManifest manifest;
+        private final boolean cleanup;
+
+        private ManifestMergeIterator(CloseableIterator<T> nested, SortManifest manifest, boolean cleanup) {
+            this.nested = nested;
+            this.manifest = manifest;
+            this.cleanup = cleanup;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nested.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return nested.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                nested.close();
+            } finally {
+                if (cleanup) {
+                    manifest.delete();
+                }
+            }
+        }
+
+    }
+
+    private static class DelegatingMergeIterator<T> implements CloseableIterator<T> {
+
+        private final Iterator<T> nested;
+
+        private DelegatingMergeIterator(Iterator<T> nested) {
+            this.nested = nested;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nested.hasNext();
+        }
+
+        @Override
+        public T next() {
+            return nested.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // nothing to do here
+        }
+
+    }
+
+    /**
+     * Returns an iterator over the sorted result. Takes a list of already sorted chunk files as
+     * input. Note that this method is normally used with one of the writeSortedChunks methods.
+     * @param sortedChunks a list of sorted chunk files
+     * @return an iterator the iterates over the sorted result.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public CloseableIterator<T> mergeSortedChunks(List<File> sortedChunks) throws IOException {
+        return mergeSortedChunksNoPartialMerge(partialMerge(sortedChunks, null), config.cleanup);
+    }
+
+    /**
+     * Performs an external merge on the values in the iterator, and groups
+     * the sorted result by a key. Values with equal keys, as decided by
+     * equals(), must be adjacent in the sort order, so the key is typically
+     * the sort key or a leading part of it. The values of each group are
+     * streamed straight from the merge, so groups of any size can be consumed
+     * without collecting them in memory. Use withDistinct(false), or else
+     * every group holds only one value per distinct value.
+     * @param values Iterator containing the data to sort.
+     * @param keyExtractor Function that extracts the group key of a value. The
+     * key must not be changed when objects are reused.
+     * @return an iterator that iterates over the groups of the sorted result.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public <K> CloseableIterator<Group<K,T>> mergeSortGrouped(Iterator<T> values, Function<? super T, ? extends K> keyExtractor) throws IOException {
+        return new GroupingIterator<K,T>(mergeSort(values), keyExtractor);
+    }
+
+    /**
+     * Returns an iterator over the groups of the sorted result. Takes a list
+     * of already sorted chunk files as input. See mergeSortGrouped(Iterator, Function).
+     * @param sortedChunks a list of sorted chunk files
+     * @param keyExtractor Function that extracts the group key of a value.
+     * @return an iterator that iterates over the groups of the sorted result.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public <K> CloseableIterator<Group<K,T>> mergeSortedChunksGrouped(List<File> sortedChunks, Function<? super T, ? extends K> keyExtractor) throws IOException {
+        return new GroupingIterator<K,T>(mergeSortedChunks(sortedChunks), keyExtractor);
+    }
+
+    /**
+     * Splits a sorted iterator into groups of adjacent values with equal keys.
+     * One value is read ahead of the caller at most, and only after the
+     * previous value has been returned, so that reused objects stay valid.
+     */
+    private static class GroupingIterator<K,T> implements CloseableIterator<Group<K,T>> {
+
+        private final CloseableIterator<T> sorted;
+        private final Function<? super T, ? extends K> keyExtractor;
+
+        private T pending;
+        private K pendingKey;
+        private boolean hasPending;
+        private SortedGroup current;
+
+        private GroupingIterator(CloseableIterator<T> sorted, Function<? super T, ? extends K> keyExtractor) {
+            this.sorted = sorted;
+            this.keyExtractor = keyExtractor;
+        }
+
+        private boolean fetch() {
+            if (!hasPending && sorted.hasNext()) {
+                pending = sorted.next();
+                pendingKey = keyExtractor.apply(pending);
+                hasPending = true;
+            }
+            return hasPending;
+        }
+
+        @Override
+        public boolean hasNext() {
+            // skip the rest of the current group
+            if (current != null) {
+                while (current.hasNext()) {
+                    current.next();
+                }
+                current = null;
+            }
+            return fetch();
+        }
+
+        @Override
+        public Group<K,T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            current = new SortedGroup(pendingKey);
+            return current;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            current = null;
+            sorted.close();
+        }
+
+        private class SortedGroup implements Group<K,T> {
+
+            private final K key;
+
+            private SortedGroup(K key) {
+                this.key = key;
+            }
+
+            @Override
+            public K getKey() {
+                return key;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return current == this && fetch() && Objects.equals(key, pendingKey);
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T value = pending;
+                pending = null;
+                hasPending = false;
+                return value;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+        }
+
+    }
+
+    private CloseableIterator<T> mergeSortedChunksNoPartialMerge(List<File> sortedChunks, boolean cleanup) throws IOException {
+        return mergeChunks(sortedChunks, Collections.<List<T>>emptyList(), cleanup);
+    }
+
+    private CloseableIterator<T> mergeChunks(List<File> sortedChunks, List<List<T>> residualChunks, boolean cleanup) throws IOException {
+        if (debugMerge) {
+            System.out.println("Merging chunks: " + sortedChunks.size() + " + " + residualChunks.size() + " in memory");
+        }
+        List<Chunk<T>> chunks = new ArrayList<Chunk<T>>(sortedChunks.size() + residualChunks.size());
+        try {
+            for (File file : sortedChunks) {
+                chunks.add(openChunkFile(file, cleanup));
+            }
+        } catch (IOException e) {
+            for (Chunk<T> chunk : chunks) {
+                chunk.close();
+            }
+            throw e;
+        }
+        for (List<T> residualChunk : residualChunks) {
+            chunks.add(new ChunkIterator<T>(residualChunk.iterator(), comparator));
+        }
+        if (chunks.size() == 1) {
+            return chunks.get(0);
+        } else {
+            return Chunk.merge(chunks, comparator, config.distinct);
+        }
+    }
+
+    /**
+     * Merges the chunk files and the unsorted chunks that a SortSink has
+     * collected.
+     */
+    CloseableIterator<T> mergeSinkChunks(List<File> sortedChunks, List<List<T>> unsortedChunks) throws IOException {
+        List<List<T>> residualChunks = new ArrayList<List<T>>(unsortedChunks.size());
+        for (List<T> chunk : unsortedChunks) {
+            residualChunks.add(sortChunk(chunk));
+        }
+        if (sortedChunks.isEmpty() && residualChunks.isEmpty()) {
+            return new DelegatingMergeIterator<T>(Collections.<T>emptyIterator());
+        }
+        return mergeChunks(partialMerge(sortedChunks, null), residualChunks, config.cleanup);
+    }
+
+    private List<File> partialMerge(List<File> sortedChunks, SortManifest manifest) throws IOException {
+        List<File> result = sortedChunks;
+        while (result.size() > config.maxOpenFiles) {
+            if (debugMerge) {
+                System.out.println("----------------------------");
+                System.out.println("Partial merge start: " + result.size());
+            }
+            result = partialSubMerge(result, manifest);
+            if (debugMerge && result.size() <= config.maxOpenFiles) {
+                System.out.println("Partial merge end: " + result.size());
+            }
+        }
+        return result;
+    }
+
+    private List<File> partialSubMerge(List<File> sortedChunks, SortManifest manifest) throws IOException {
+        int chunks = sortedChunks.size();
+
+        if (chunks > config.maxOpenFiles) {
+
+            int chunksToMerge = Math.min(Math.max(2, chunks - config.maxOpenFiles), config.maxOpenFiles);
+
+            if (debugMerge) {
+                System.out.printf("chunks: %d\n", chunks);
+                System.out.printf("chunksToMerge: %d = Math.min(Math.max(2 - %d), %d)\n", chunksToMerge, chunks, config.maxOpenFiles, config.maxOpenFiles);
+            }
+
+            List<File> headList = sortedChunks.subList(0, chunksToMerge);
+            List<File> tailList = sortedChunks.subList(chunksToMerge, sortedChunks.size());
+            if (debugMerge) {
+                System.out.printf("head: %d tail: %d\n", headList.size(), tailList.size());
+            }
+
+            List<File> result = new ArrayList<File>(tailList);
+            result.add(mergeSubList(headList, manifest));
+
+            if (debugMerge) {
+                System.out.printf("chunks result: %d\n", result.size());
+            }
+
+            return result;
+        }
+        return sortedChunks;
+    }
+
+    private File mergeSubList(List<File> subList, SortManifest manifest) throws IOException {
+        if (manifest == null) {
+            CloseableIterator<T> iter = mergeSortedChunksNoPartialMerge(subList, config.cleanup);
+            try {
+                return writeChunk("exmeso-merged-", iter, false);
+            } finally {
+                iter.close();
+            }
+        } else {
+            // the merged chunk files must not be deleted before the manifest
+            // has recorded the merge result
+            File result;
+            CountingIterator<T> iter = new CountingIterator<T>(mergeSortedChunksNoPartialMerge(subList, false));
+            try {
+                result = writeChunk("exmeso-merged-", iter, true);
+            } finally {
+                iter.close();
+            }
+            manifest.mergedRuns(subList, result, iter.getCount());
+            if (config.cleanup) {
+                for (File file : subList) {
+                    file.delete();
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class CountingIterator<T> implements CloseableIterator<T> {
+
+        private final CloseableIterator<T> nested;
+        private long count;
+
+        private CountingIterator(CloseableIterator<T> nested) {
+            this.nested = nested;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nested.hasNext();
+        }
+
+        @Override
+        public T next() {
+            T result = nested.next();
+            count++;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            nested.close();
+        }
+
+    }
+
+    /**
+     * The head of a sorted chunk in the merge heap. If the comparator is a
+     * SortKey then the key of the head value is computed once, and is used for
+     * all comparisons in the heap and for the duplicate check in the merge.
+     */
+    static abstract class Chunk<T> implements Comparable<Chunk<T>>, CloseableIterator<T> {
+
+        private final Comparator<T> comparator;
+        private final SortKey<T,?> sortKey;
+
+        protected T next;
+        private Object nextKey;
+        private Object lastKey;
+
+        @SuppressWarnings("unchecked")
+        protected Chunk(Comparator<T> comparator) {
+            this.comparator = comparator;
+            this.sortKey = comparator instanceof SortKey ? (SortKey<T,?>)comparator : null;
+        }
+
+        protected abstract void readNext();
+
+        /**
+         * @return the value that next() returns, or null if there is none.
+         */
+        T peek() {
+            return next;
+        }
+
+        private Object nextKey() {
+            if (nextKey == null) {
+                nextKey = sortKey.key(next);
+            }
+            return nextKey;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            T result = next;
+            if (sortKey != null) {
+                lastKey = nextKey();
+                nextKey = null;
+            }
+            readNext();
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int compareTo(Chunk<T> o) {
+            if (sortKey != null) {
+                return sortKey.compareKeys(nextKey(), o.nextKey());
+            }
+            return comparator.compare(next, o.next);
+        }
+
+        /**
+         * Returns an iterator that merges the chunks, using the cached keys of
+         * the chunks if the comparator is a SortKey.
+         */
+        static <T> MergeSortedIterator<T,Chunk<T>> merge(Collection<Chunk<T>> chunks, Comparator<T> comparator, boolean distinct) throws IOException {
+            if (!(comparator instanceof SortKey)) {
+                return new MergeSortedIterator<T,Chunk<T>>(chunks, comparator, distinct);
+            }
+            final SortKey<T,?> sortKey = (SortKey<T,?>)comparator;
+            return new MergeSortedIterator<T,Chunk<T>>(chunks, comparator, distinct, new MergeSortedIterator.SourceKeys<Chunk<T>>() {
+                @Override
+                public Object lastKey(Chunk<T> source) {
+                    return source.lastKey;
+                }
+                @Override
+                public int compareKeys(Object key1, Object key2) {
+                    return sortKey.compareKeys(key1, key2);
+                }
+            });
+        }
+
+    }
+
+    private Chunk<T> openChunkFile(File file, boolean cleanup) throws IOException {
+        return openChunkFile(file, cleanup, config.objectReuse);
+    }
+
+    /**
+     * Opens a sorted chunk file that is kept when closed, and whose values are
+     * never reused, so that they stay valid while the chunk is read further.
+     */
+    Chunk<T> openSortedChunk(File file) throws IOException {
+        return openChunkFile(file, false, false);
+    }
+
+    private Chunk<T> openChunkFile(File file, boolean cleanup, boolean objectReuse) throws IOException {
+        InputStream input = openChunkInput(file);
+        try {
+            if (objectReuse && serializer instanceof ReusingSerializer) {
+                return new ReusingChunkFile<T>(file, input, (ReusingSerializer<T>)serializer, comparator, cleanup);
+            } else if (serializer instanceof BatchSerializer) {
+                return new BatchChunkFile<T>(file, input, (BatchSerializer<T>)serializer, comparator, cleanup, config.batchSize);
+            } else {
+                return new ChunkFile<T>(file, input, serializer, comparator, cleanup);
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        } catch (RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    private InputStream openChunkInput(File file) throws IOException {
+        if (config.directIO) {
+            // a merge reads up to maxOpenFiles chunk files at the same time
+            InputStream input = DirectIO.openInput(file, config.maxOpenFiles);
+            if (input != null) {
+                return input;
+            }
+        }
+        return new FileInputStream(file);
+    }
+
+    private OutputStream openChunkOutput(File file) throws IOException {
+        if (config.directIO) {
+            OutputStream out = DirectIO.openOutput(file);
+            if (out != null) {
+                return out;
+            }
+        }
+        return new FileOutputStream(file);
+    }
+
+    /**
+     * A chunk file that rotates through a pool of three objects. The merge holds
+     * on to at most two objects from a chunk at a time, the one returned to the
+     * caller and the one it looks ahead to, so the third is free to be read into.
+     * This requires chunk files to contain no duplicates when distinct is set to
+     * true, which holds for the chunk files written by this class.
+     */
+    private static class ReusingChunkFile<T> extends Chunk<T> {
+
+        private static final int POOL_SIZE = 3;
+
+        private final File file;
+        private final boolean cleanup;
+
+        private final InputStream input;
+        private final ReusingSerializer.ValueReader<T> reader;
+        private final Object[] pool = new Object[POOL_SIZE];
+        private int index;
+
+        private ReusingChunkFile(File file, InputStream input, ReusingSerializer<T> serializer, Comparator<T> comparator, boolean cleanup) throws IOException {
+            super(comparator);
+            this.file = file;
+            this.cleanup = cleanup;
+            this.input = input;
+            reader = serializer.createValueReader(input);
+            readNext();
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[next=" + next + ", file=" + file + "]";
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void readNext() {
+            T value;
+            try {
+                value = reader.readInto((T)pool[index]);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (value != null) {
+                pool[index] = value;
+                index = (index + 1) % POOL_SIZE;
+            }
+            next = value;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                input.close();
+            } finally {
+                if (cleanup) {
+                    file.delete();
+                }
+            }
+        }
+
+    }
+
+    private static class BatchChunkFile<T> extends Chunk<T> {
+
+        private final File file;
+        private final boolean cleanup;
+
+        private final InputStream input;
+        private final BatchSerializer.BatchReader<T> reader;
+        private final Object[] batch;
+        private int position;
+        private int size;
+
+        private BatchChunkFile(File file, InputStream input, BatchSerializer<T> serializer, Comparator<T> comparator, boolean cleanup, int batchSize) throws IOException {
+            super(comparator);
+            this.file = file;
+            this.cleanup = cleanup;
+            this.batch = new Object[batchSize];
+            this.input = input;
+            reader = serializer.createReader(input);
+            readNext();
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[next=" + next + ", file=" + file + "]";
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected void readNext() {
+            if (position == size) {
+                try {
+                    size = reader.readBatch(batch);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                position = 0;
+                if (size == 0) {
+                    next = null;
+                    return;
+                }
+            }
+            next = (T)batch[position];
+            batch[position++] = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                input.close();
+            } finally {
+                if (cleanup) {
+                    file.delete();
+                }
+            }
+        }
+
+    }
+
+    private static class ChunkFile<T> extends Chunk<T> {
+
+        private final File file;
+        private final boolean cleanup;
+
+        private final InputStream input;
+        private final Iterator<T> iter;
+
+        private ChunkFile(final File file, InputStream input, Serializer<T> serializer, Comparator<T> comparator, boolean cleanup) throws IOException {
+            super(comparator);
+            this.file = file;
+            this.cleanup = cleanup;
+            this.input = input;
+            iter = serializer.readValues(input);
+            readNext();
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[next=" + next + ", file=" + file + "]";
+        }
+
+        @Override
+        protected void readNext() {
+            this.next = iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
         public void close() throws IOException {
             try {
                 input.close();
@@ -352,18 +2368,120 @@ public class ExternalMergeSort<T> {
 
     }
 
+    static class ChunkIterator<T> extends Chunk<T> {
+
+        private Iterator<T> iter;
+
+        ChunkIterator(Iterator<T> values, Comparator<T> comparator) {
+            super(comparator);
+            this.iter = values;
+            readNext();
+        }
+
+        @Override
+        public String toString() {
+            return "Chunk[next=" + next + ", iterator=" + iter + "]";
+        }
+
+        @Override
+        protected void readNext() {
+            this.next = iter.hasNext() ? iter.next() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Iterator<T> nested = iter;
+            // release the values so that they can be garbage collected
+            this.iter = Collections.<T>emptyList().iterator();
+            this.next = null;
+            if (nested instanceof Closeable) {
+                ((Closeable)nested).close();
+            }
+        }
+
+    }
+
+    /**
+     * Iterates over a sorted chunk, followed by the chunks read from the input
+     * for as long as each of them continues in order from where the previous
+     * one ended. Input that is already sorted, or that arrives as long ascending
+     * runs, is then written as a few long runs instead of one run per chunk,
+     * which leaves less work for the merge. The first chunk that does not
+     * continue the run is kept in 'pending'.
+     */
+    private class SortedRun implements Iterator<T> {
+
+        private final Iterator<T> input;
+        private final boolean keepLast;
+        private Iterator<T> current;
+        private T last;
+        private List<T> pending;
+        private int pendingInputSize;
+        private long records;
+
+        /**
+         * @param keepLast If true then the last chunk of the input is never
+         * added to the run, but left pending, so that it can be kept in memory.
+         */
+        private SortedRun(List<T> chunk, Iterator<T> input, boolean keepLast) {
+            this.current = chunk.iterator();
+            this.input = input;
+            this.keepLast = keepLast;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (current.hasNext()) {
+                return true;
+            }
+            if (pending != null || !input.hasNext()) {
+                return false;
+            }
+            List<T> values = readChunk(input);
+            int inputSize = values.size();
+            List<T> chunk = sortChunk(values);
+            int c = comparator.compare(last, chunk.get(0));
+            if ((c < 0 || (c == 0 && !config.distinct)) && !(keepLast && !input.hasNext())) {
+                current = chunk.iterator();
+                return true;
+            }
+            pending = chunk;
+            pendingInputSize = inputSize;
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = current.next();
+            records++;
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
     /**
      * Read the data from the iterator, then perform a sort, and write individually
-     * sorted chunk files to disk.
+     * sorted chunk files to disk. Chunks that continue in order from the previous
+     * chunk are written to the same file.
      * @param input Iterator containing the data to sort.
      * @return list of sorted chunk files.
      * @throws IOException if something fails when doing I/O.
      */
     public List<File> writeSortedChunks(Iterator<T> input) throws IOException {
         List<File> result = new ArrayList<File>();
-        while (input.hasNext()) {
-            File chunkFile = writeSortedChunk(input);
-            result.add(chunkFile);
+        List<T> pending = null;
+        while (pending != null || input.hasNext()) {
+            SortedRun run = new SortedRun(pending != null ? pending : sortChunk(readChunk(input)), input, false);
+            result.add(writeChunk("exmeso-sorted-", run, false));
+            pending = run.pending;
         }
         if (debugMerge) {
             System.out.printf("Chunks %d (chunkSize=%d, maxOpenFiles=%d)\n", result.size(), config.chunkSize, config.maxOpenFiles);
@@ -386,24 +2504,135 @@ public class ExternalMergeSort<T> {
         return writeInternalSortedChunk(chunk);
     }
 
-    private File writeInternalSortedChunk(List<T> values) throws IOException {
+    File writeInternalSortedChunk(List<T> values) throws IOException {
+        return writeChunk("exmeso-sorted-", sortChunk(values).iterator(), false);
+    }
+
+    /**
+     * Sorts the values as an array with sortAdaptive, and then removes adjacent
+     * duplicates if 'distinct' is set to true.
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> sortChunk(List<T> values) {
         long st = System.currentTimeMillis();
-        Collections.sort(values, comparator);
+        T[] array = (T[]) values.toArray();
+        int size;
+        if (comparator instanceof SortKey) {
+            size = ((SortKey<T,?>)comparator).sort(array, config.distinct);
+        } else {
+            sortAdaptive(array, comparator);
+            size = config.distinct ? removeDuplicates(array) : array.length;
+        }
+        Arrays.fill(array, size, array.length, null);
         if (ExternalMergeSort.debug) {
             System.out.println("S: " + (System.currentTimeMillis() - st) + "ms");
         }
-        return writeChunk("exmeso-sorted-", values.iterator());
+        return Arrays.asList(array).subList(0, size);
     }
 
-    private File writeChunk(String prefix, Iterator<T> values) throws IOException {
+    /**
+     * Sorts the array, or leaves it as it is if it is already in order. An
+     * array with few descents consists of long ascending runs, which the
+     * TimSort of Arrays.sort merges in close to linear time, while any other
+     * array is sorted with Arrays.parallelSort so that spare cores are used.
+     */
+    static <E> void sortAdaptive(E[] values, Comparator<? super E> comparator) {
+        int maxDescents = values.length / MIN_NATURAL_RUN;
+        int descents = 0;
+        for (int i=1; i < values.length && descents <= maxDescents; i++) {
+            if (comparator.compare(values[i-1], values[i]) > 0) {
+                descents++;
+            }
+        }
+        if (descents == 0) {
+            return;
+        } else if (descents <= maxDescents) {
+            Arrays.sort(values, comparator);
+        } else {
+            Arrays.parallelSort(values, comparator);
+        }
+    }
+
+    private int removeDuplicates(T[] sorted) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int size = 1;
+        for (int i=1; i < sorted.length; i++) {
+            if (comparator.compare(sorted[size-1], sorted[i]) != 0) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return size;
+    }
+
+    private File writeChunk(String prefix, Iterator<T> values, boolean sync) throws IOException {
         File chunkFile = createChunkFile(prefix);
-        OutputStream out = new FileOutputStream(chunkFile);
         try {
-            serializer.writeValues(values, out);
+            writeChunkFile(chunkFile, values, sync);
+        } catch (IOException e) {
+            deletePartialChunk(chunkFile);
+            throw e;
+        } catch (RuntimeException e) {
+            deletePartialChunk(chunkFile);
+            throw e;
+        }
+        if (config.resourceManager != null) {
+            config.resourceManager.addTempFile(chunkFile);
+        }
+        return chunkFile;
+    }
+
+    private void deletePartialChunk(File chunkFile) {
+        if (config.cleanup) {
+            chunkFile.delete();
+        }
+    }
+
+    /**
+     * Writes the values to an existing file, replacing its contents.
+     * @param sync If true then the file is forced to the device before returning.
+     */
+    void writeChunkFile(File chunkFile, Iterator<T> values, boolean sync) throws IOException {
+        OutputStream out = openChunkOutput(chunkFile);
+        try {
+            writeValues(values, out);
+            if (sync) {
+                if (out instanceof DirectIO.DirectOutputStream) {
+                    ((DirectIO.DirectOutputStream)out).sync();
+                } else {
+                    ((FileOutputStream)out).getFD().sync();
+                }
+            }
         } finally {
             out.close();
         }
-        return chunkFile;
+    }
+
+    private void writeValues(Iterator<T> values, OutputStream out) throws IOException {
+        // reused objects are only valid until the next one is read, so they
+        // cannot be collected into batches
+        if (serializer instanceof BatchSerializer && !config.objectReuse) {
+            writeBatches((BatchSerializer<T>)serializer, values, out);
+        } else {
+            serializer.writeValues(values, out);
+        }
+    }
+
+    private void writeBatches(BatchSerializer<T> batchSerializer, Iterator<T> values, OutputStream out) throws IOException {
+        Object[] batch = new Object[config.batchSize];
+        BatchSerializer.BatchWriter<T> writer = batchSerializer.createWriter(out);
+        try {
+            while (values.hasNext()) {
+                int n = 0;
+                while (n < batch.length && values.hasNext()) {
+                    batch[n++] = values.next();
+                }
+                writer.writeBatch(batch, n);
+            }
+        } finally {
+            writer.close();
+        }
     }
 
     protected File createChunkFile(String prefix) throws IOException {
@@ -415,16 +2644,43 @@ public class ExternalMergeSort<T> {
     }
 
     private List<T> readChunk(Iterator<T> input) {
-        List<T> result = new ArrayList<T>(Math.max(2, config.chunkSize/4));
+        int chunkSize = heapMonitor != null ? adaptChunkSize() : config.chunkSize;
+        int minChunkSize = Math.max(1, config.chunkSize / MIN_CHUNK_DIVISOR);
+        List<T> result = new ArrayList<T>(Math.max(2, chunkSize/4));
         int c = 0;
         while (input.hasNext()) {
             c++;
             result.add(input.next());
-            if (c >= config.chunkSize) {
+            if (c >= chunkSize) {
+                return result;
+            }
+            // spill early if the heap came under pressure while reading
+            if (heapMonitor != null && c >= minChunkSize && heapMonitor.getLiveFraction() > config.heapPressureLimit) {
                 return result;
             }
         }
         return result;
     }
 
+    /**
+     * Halves or doubles the chunk size if there has been a garbage collection
+     * since it was last adapted, depending on how much of the tenured heap
+     * was live after the collection.
+     */
+    private int adaptChunkSize() {
+        int chunkSize = adaptiveChunkSize;
+        long collection = heapMonitor.getCollectionCount();
+        if (collection != adaptedCollection) {
+            double live = heapMonitor.getLiveFraction();
+            if (live > config.heapPressureLimit) {
+                chunkSize = Math.max(Math.max(1, config.chunkSize / MIN_CHUNK_DIVISOR), chunkSize / 2);
+            } else if (live < config.heapPressureLimit / 2) {
+                chunkSize = (int)Math.min(config.maxChunkSize, 2L * chunkSize);
+            }
+            adaptiveChunkSize = chunkSize;
+            adaptedCollection = collection;
+        }
+        return chunkSize;
+    }
+
 }
@@ -0,0 +1,24 @@
+package org.geirove.exmeso;
+
+import java.util.Iterator;
+
+/**
+ * The values of a sorted result that have the same key, as returned by
+ * ExternalMergeSort.mergeSortGrouped(...). The values are streamed from the
+ * merge as the group is iterated, and are never collected in memory. A group
+ * is only valid until the next group is requested, which skips the values of
+ * the group that have not been read.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <K> The type of the group key.
+ * @param <T> The type of values in the group.
+ */
+public interface Group<K,T> extends Iterator<T> {
+
+    /**
+     * @return the key shared by all values of the group.
+     */
+    K getKey();
+
+}
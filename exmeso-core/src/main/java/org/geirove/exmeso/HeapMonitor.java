@@ -0,0 +1,92 @@
+package org.geirove.exmeso;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Tracks how full the tenured heap is after each garbage collection. The
+ * usage of a pool right after a collection is the amount of live data in it,
+ * which unlike the current usage does not include garbage that has not been
+ * collected yet. It is read from the collection usage of the heap pools that
+ * support usage thresholds, which are the tenured pools, whenever a garbage
+ * collector sends a notification. A single monitor is shared by all sorts,
+ * since the listeners stay registered for the lifetime of the JVM.
+ *
+ * @author grove@geirove.org
+ */
+class HeapMonitor implements NotificationListener {
+
+    // the type of the notifications sent by the garbage collectors of HotSpot and OpenJ9
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private static final HeapMonitor INSTANCE = new HeapMonitor();
+
+    private final List<MemoryPoolMXBean> tenuredPools = new ArrayList<MemoryPoolMXBean>();
+
+    private volatile double liveFraction;
+    // notifications may be delivered on more than one thread
+    private final AtomicLong collectionCount = new AtomicLong();
+
+    private HeapMonitor() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported()) {
+                tenuredPools.add(pool);
+            }
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter)gc).addNotificationListener(this, null, null);
+            }
+        }
+    }
+
+    static HeapMonitor getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (GC_NOTIFICATION.equals(notification.getType())) {
+            long used = 0;
+            long max = 0;
+            for (MemoryPoolMXBean pool : tenuredPools) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                if (usage != null) {
+                    used += usage.getUsed();
+                    max += usage.getMax() >= 0 ? usage.getMax() : usage.getCommitted();
+                }
+            }
+            if (max > 0) {
+                liveFraction = (double)used / max;
+            }
+            collectionCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the fraction of the tenured heap that was in use after the last
+     * garbage collection, or 0 if there has been none.
+     */
+    double getLiveFraction() {
+        return liveFraction;
+    }
+
+    /**
+     * Returns the number of garbage collections that have been seen, which
+     * tells whether the live fraction has been updated.
+     */
+    long getCollectionCount() {
+        return collectionCount.get();
+    }
+
+}
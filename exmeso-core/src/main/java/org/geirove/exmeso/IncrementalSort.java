@@ -0,0 +1,670 @@
+package org.geirove.exmeso;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.BinaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * A sorted result that is kept in a directory as sorted runs, and that new
+ * data is merged into incrementally, like the levels of a log-structured
+ * merge tree. Each call to add(...) sorts only the new values with mergeSort
+ * and writes them as a new run on level 0. iterator() merges the runs of all
+ * levels lazily. When values compare equal, the value from the newest run
+ * wins, so that new values overwrite old ones, or the values are combined
+ * with the combiner if one is configured. Compaction bounds the number of
+ * runs: when a level has more than runsPerLevel runs they are merged into a
+ * single run on the next level, and runs on the last level are merged with
+ * each other. The cost of an add is thus proportional to the size of the new
+ * values, plus the amortized cost of compaction. Compaction runs as part of
+ * add(...), or in the background if an executor is configured.
+ *
+ * The runs are recorded in a manifest file that is replaced atomically, and
+ * run files that the manifest does not know about are deleted when the
+ * directory is opened, so a crash never leaves values missing or duplicated.
+ * The directory is locked from when it is opened until close() is called,
+ * so that only one IncrementalSort uses it at a time.
+ * Example:
+ *
+ * <pre>
+ * IncrementalSort&lt;Event&gt; store = ExternalMergeSort.newSorter(serializer, comparator)
+ *         .build()
+ *         .newIncrementalSort(new File("events"))
+ *         .withRunsPerLevel(4)
+ *         .build();
+ * store.add(todaysEvents);
+ * CloseableIterator&lt;Event&gt; all = store.iterator();
+ * </pre>
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ */
+public class IncrementalSort<T> implements Closeable {
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String LOCK = "LOCK";
+    private static final String HEADER = "# exmeso incremental sort";
+    private static final String ENCODING = "UTF-8";
+    private static final Pattern RUN_FILE = Pattern.compile("run-(\\d+)\\.exmeso");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final ExternalMergeSort<T> sort;
+    private final Comparator<T> comparator;
+    private final boolean distinct;
+    private final File directory;
+    private final int runsPerLevel;
+    private final int maxLevels;
+    private final BinaryOperator<T> combiner;
+    private final Executor executor;
+
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    // the runs of all levels, newest first, guarded by this
+    private final List<Run> runs = new ArrayList<Run>();
+    private long nextSequence;
+
+    // only one compaction runs at a time
+    private final Object compactionLock = new Object();
+    private CompletableFuture<Void> compaction = CompletableFuture.completedFuture(null);
+
+    private IncrementalSort(Builder<T> builder) {
+        this.sort = builder.sort;
+        this.comparator = builder.comparator;
+        this.distinct = builder.distinct || builder.combiner != null;
+        this.directory = builder.directory;
+        this.runsPerLevel = builder.runsPerLevel;
+        this.maxLevels = builder.maxLevels;
+        this.combiner = builder.combiner;
+        this.executor = builder.executor;
+    }
+
+    public static class Builder<T> {
+
+        private final ExternalMergeSort<T> sort;
+        private final File directory;
+        private final Comparator<T> comparator;
+        private final boolean distinct;
+
+        private int runsPerLevel = 4;
+        private int maxLevels = 8;
+        private BinaryOperator<T> combiner;
+        private Executor executor;
+
+        Builder(ExternalMergeSort<T> sort, File directory, Comparator<T> comparator, boolean distinct) {
+            this.sort = sort;
+            this.directory = directory;
+            this.comparator = comparator;
+            this.distinct = distinct;
+        }
+
+        /**
+         * Specifies the number of runs a level may have before they are merged
+         * into one run on the next level. Fewer runs make reads cheaper, and
+         * more runs make adds cheaper. The default is 4.
+         * @param runsPerLevel Number of runs.
+         * @return this
+         */
+        public Builder<T> withRunsPerLevel(int runsPerLevel) {
+            if (runsPerLevel < 1) {
+                throw new IllegalArgumentException("runsPerLevel must be positive");
+            }
+            this.runsPerLevel = runsPerLevel;
+            return this;
+        }
+
+        /**
+         * Specifies the number of levels. The runs of the last level are
+         * merged with each other, so there are never more than maxLevels
+         * times runsPerLevel runs once compaction has caught up. The default
+         * is 8.
+         * @param maxLevels Number of levels.
+         * @return this
+         */
+        public Builder<T> withMaxLevels(int maxLevels) {
+            if (maxLevels < 1) {
+                throw new IllegalArgumentException("maxLevels must be positive");
+            }
+            this.maxLevels = maxLevels;
+            return this;
+        }
+
+        /**
+         * Specifies a function that combines values that compare equal into
+         * one, instead of keeping the newest. It is called with the older
+         * value first and the newer value second. A combiner implies distinct
+         * output. Use withDistinct(false) on the sort so that equal values
+         * within one add(...) are combined too, rather than removed by the
+         * sort.
+         * @param combiner The function that combines an older and a newer value.
+         * @return this
+         */
+        public Builder<T> withCombiner(BinaryOperator<T> combiner) {
+            this.combiner = combiner;
+            return this;
+        }
+
+        /**
+         * Specifies an executor to compact the levels on in the background.
+         * Without it, compaction is done by add(...) before it returns.
+         * @param executor The executor to compact on.
+         * @return this
+         */
+        public Builder<T> withCompactionExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        /**
+         * Opens and locks the directory, creating it if it does not exist,
+         * and loads the runs recorded in its manifest.
+         * @return the opened IncrementalSort.
+         * @throws IOException if the directory or its manifest cannot be read,
+         * or if the directory is locked by another IncrementalSort.
+         */
+        public IncrementalSort<T> build() throws IOException {
+            IncrementalSort<T> result = new IncrementalSort<T>(this);
+            result.load();
+            return result;
+        }
+    }
+
+    /**
+     * A sorted run file on a level.
+     */
+    private static class Run {
+
+        private final int level;
+        private final long sequence;
+        private final File file;
+
+        private Run(int level, long sequence, File file) {
+            this.level = level;
+            this.sequence = sequence;
+            this.file = file;
+        }
+
+        @Override
+        public String toString() {
+            return "Run[level=" + level + ", sequence=" + sequence + ", file=" + file + "]";
+        }
+    }
+
+    private File runFile(long sequence) {
+        return new File(directory, "run-" + sequence + ".exmeso");
+    }
+
+    private void load() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        lock();
+        try {
+            loadRuns();
+        } catch (IOException e) {
+            unlock();
+            throw e;
+        } catch (RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Locks the directory, so that the temporary and unknown run files that
+     * loadRuns() deletes cannot belong to an add or compaction in progress.
+     */
+    private void lock() throws IOException {
+        lockChannel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Directory is in use by another incremental sort: " + directory);
+        }
+    }
+
+    private void unlock() throws IOException {
+        if (lockChannel != null) {
+            try {
+                lock.release();
+            } finally {
+                lockChannel.close();
+                lockChannel = null;
+                lock = null;
+            }
+        }
+    }
+
+    private void loadRuns() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        if (manifest.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), ENCODING));
+            try {
+                String line = reader.readLine();
+                if (!HEADER.equals(line)) {
+                    throw new IOException("Not an incremental sort manifest: " + manifest);
+                }
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("run=")) {
+                        String[] fields = line.substring("run=".length()).split("\t", 3);
+                        if (fields.length != 3) {
+                            throw new IOException("Invalid run in incremental sort manifest " + manifest + ": " + line);
+                        }
+                        long sequence = Long.parseLong(fields[1]);
+                        Run run = new Run(Integer.parseInt(fields[0]), sequence, runFile(sequence));
+                        if (run.file.length() != Long.parseLong(fields[2])) {
+                            throw new IOException("Run file is missing or incomplete: " + run);
+                        }
+                        runs.add(run);
+                        nextSequence = Math.max(nextSequence, sequence + 1);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid incremental sort manifest " + manifest + ": " + e.getMessage());
+            } finally {
+                reader.close();
+            }
+        }
+        // remove what an interrupted add or compaction left behind
+        Set<File> live = new HashSet<File>();
+        for (Run run : runs) {
+            live.add(run.file);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if ((RUN_FILE.matcher(file.getName()).matches() && !live.contains(file)) || file.getName().endsWith(TEMP_SUFFIX)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void saveManifest() throws IOException {
+        File manifest = new File(directory, MANIFEST);
+        File tmpFile = new File(directory, MANIFEST + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            Writer writer = new OutputStreamWriter(out, ENCODING);
+            writer.write(HEADER + "\n");
+            for (Run run : runs) {
+                writer.write("run=" + run.level + "\t" + run.sequence + "\t" + run.file.length() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(manifest)) {
+            throw new IOException("Could not replace incremental sort manifest: " + manifest);
+        }
+        SortManifest.syncDirectory(directory);
+    }
+
+    /**
+     * Sorts the values and adds them as a new run. Values that compare equal
+     * to values already added overwrite them, or are combined with them if a
+     * combiner is configured.
+     * @param values Iterator containing the values to add.
+     * @throws IOException if something fails when doing I/O, or if a
+     * background compaction has failed since the last call.
+     */
+    public void add(Iterator<T> values) throws IOException {
+        checkCompaction();
+        CloseableIterator<T> sorted = sort.mergeSort(values);
+        Run run;
+        try {
+            if (!sorted.hasNext()) {
+                return;
+            }
+            run = writeRun(0, sorted);
+        } finally {
+            sorted.close();
+        }
+        synchronized (this) {
+            runs.add(0, run);
+            saveManifest();
+        }
+        if (executor == null) {
+            compact();
+        } else {
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Returns an iterator over the merged runs of all levels. The iterator
+     * reads the runs as they were when it was created, and is not affected
+     * by later adds or compactions.
+     * @return an iterator that iterates over the sorted result.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public synchronized CloseableIterator<T> iterator() throws IOException {
+        return new RunMerge(runs);
+    }
+
+    /**
+     * @return the number of runs on all levels.
+     */
+    public synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    /**
+     * @return the number of levels that have runs, counting from level 0 up
+     * to the highest level with a run.
+     */
+    public synchronized int getLevelCount() {
+        int result = 0;
+        for (Run run : runs) {
+            result = Math.max(result, run.level + 1);
+        }
+        return result;
+    }
+
+    private Run writeRun(int level, Iterator<T> values) throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence++;
+        }
+        File tmpFile = File.createTempFile("run-", TEMP_SUFFIX, directory);
+        try {
+            sort.writeChunkFile(tmpFile, values, true);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        } catch (RuntimeException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        File file = runFile(sequence);
+        if (!tmpFile.renameTo(file)) {
+            tmpFile.delete();
+            throw new IOException("Could not rename run file: " + file);
+        }
+        SortManifest.syncDirectory(directory);
+        return new Run(level, sequence, file);
+    }
+
+    /**
+     * Merges levels until no level has more than runsPerLevel runs.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            int level;
+            while ((level = levelToCompact()) >= 0) {
+                compactLevel(level);
+            }
+        }
+    }
+
+    private synchronized int levelToCompact() {
+        int[] counts = new int[maxLevels];
+        for (Run run : runs) {
+            counts[Math.min(run.level, maxLevels - 1)]++;
+        }
+        for (int level=0; level < maxLevels; level++) {
+            if (counts[level] > runsPerLevel) {
+                return level;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Merges all runs of the level into one run on the next level, or on the
+     * same level if it is the last one. All runs of a level are newer than
+     * the runs of the levels above it, so the merged run is placed first on
+     * the next level, and the newest first order of the runs is kept.
+     */
+    private void compactLevel(int level) throws IOException {
+        List<Run> merged = new ArrayList<Run>();
+        synchronized (this) {
+            for (Run run : runs) {
+                if (Math.min(run.level, maxLevels - 1) == level) {
+                    merged.add(run);
+                }
+            }
+        }
+        int target = Math.min(level + 1, maxLevels - 1);
+        Run result;
+        CloseableIterator<T> values = new RunMerge(merged);
+        try {
+            result = writeRun(target, values);
+        } finally {
+            values.close();
+        }
+        synchronized (this) {
+            int index = runs.indexOf(merged.get(0));
+            runs.removeAll(merged);
+            runs.add(index, result);
+            saveManifest();
+        }
+        for (Run run : merged) {
+            run.file.delete();
+        }
+    }
+
+    private synchronized void scheduleCompaction() {
+        compaction = compaction.thenRunAsync(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Throws the failure of a background compaction once, so that the next
+     * compaction is scheduled anew.
+     */
+    private synchronized void checkCompaction() throws IOException {
+        if (compaction.isCompletedExceptionally()) {
+            CompletableFuture<Void> failed = compaction;
+            compaction = CompletableFuture.completedFuture(null);
+            awaitCompaction(failed);
+        }
+    }
+
+    private static void awaitCompaction(CompletableFuture<Void> compaction) throws IOException {
+        try {
+            compaction.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException)cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Waits for background compaction to finish, and unlocks the directory.
+     * @throws IOException if the compaction failed.
+     */
+    @Override
+    public void close() throws IOException {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            pending = compaction;
+        }
+        try {
+            awaitCompaction(pending);
+        } finally {
+            synchronized (this) {
+                unlock();
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "IncrementalSort[directory=" + directory + ", runs=" + runs + "]";
+    }
+
+    /**
+     * A run being merged, ordered by its next value and then by its age, so
+     * that of equal values the one from the newest run comes first.
+     */
+    private class Source implements Comparable<Source> {
+
+        private final ExternalMergeSort.Chunk<T> chunk;
+        private final int age;
+
+        private Source(ExternalMergeSort.Chunk<T> chunk, int age) {
+            this.chunk = chunk;
+            this.age = age;
+        }
+
+        @Override
+        public int compareTo(Source o) {
+            int c = chunk.compareTo(o.chunk);
+            return c != 0 ? c : Integer.compare(age, o.age);
+        }
+    }
+
+    /**
+     * Merges runs that are given newest first. If distinct, equal values are
+     * reduced to the newest, or combined with the combiner from the oldest
+     * to the newest.
+     */
+    private class RunMerge implements CloseableIterator<T> {
+
+        private final List<ExternalMergeSort.Chunk<T>> chunks;
+        private final PriorityQueue<Source> pq;
+        private final List<T> equal = new ArrayList<T>();
+        private final List<Integer> runStarts = new ArrayList<Integer>();
+
+        private RunMerge(List<Run> runs) throws IOException {
+            this.chunks = new ArrayList<ExternalMergeSort.Chunk<T>>(runs.size());
+            this.pq = new PriorityQueue<Source>(Math.max(1, runs.size()));
+            try {
+                for (Run run : runs) {
+                    ExternalMergeSort.Chunk<T> chunk = sort.openSortedChunk(run.file);
+                    chunks.add(chunk);
+                    if (chunk.hasNext()) {
+                        pq.add(new Source(chunk, chunks.size()));
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        private T take() {
+            Source source = pq.poll();
+            T value = source.chunk.next();
+            if (source.chunk.hasNext()) {
+                pq.add(source);
+            }
+            return value;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !pq.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (pq.isEmpty()) {
+                throw new NoSuchElementException();
+            }
+            if (!distinct) {
+                return take();
+            }
+            // equal values come out newest run first, and in order within each run
+            int age = pq.peek().age;
+            T first = take();
+            equal.add(first);
+            runStarts.add(0);
+            while (!pq.isEmpty() && comparator.compare(pq.peek().chunk.peek(), first) == 0) {
+                if (pq.peek().age != age) {
+                    age = pq.peek().age;
+                    runStarts.add(equal.size());
+                }
+                equal.add(take());
+            }
+            T value;
+            if (combiner == null) {
+                value = equal.get(runStarts.size() > 1 ? runStarts.get(1) - 1 : equal.size() - 1);
+            } else {
+                // fold from the oldest run to the newest
+                int end = equal.size();
+                int start = runStarts.get(runStarts.size() - 1);
+                value = equal.get(start);
+                for (int r=runStarts.size() - 1; r >= 0; r--) {
+                    for (int i=runStarts.get(r); i < end; i++) {
+                        if (i != start) {
+                            value = combiner.apply(value, equal.get(i));
+                        }
+                    }
+                    end = runStarts.get(r);
+                }
+            }
+            equal.clear();
+            runStarts.clear();
+            return value;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            pq.clear();
+            IOException ex = null;
+            for (ExternalMergeSort.Chunk<T> chunk : chunks) {
+                try {
+                    chunk.close();
+                } catch (IOException e) {
+                    ex = e;
+                }
+            }
+            if (ex != null) {
+                throw ex;
+            }
+        }
+    }
+
+}
@@ -14,11 +14,23 @@ public class MergeSortedIterator<T,I extends CloseableIterator<T>> implements Cl
     private final boolean distinct;
 
     private final Comparator<T> tcomparator;
+    private final SourceKeys<I> sourceKeys;
+    private Object previousKey;
     private T next;
 
     public MergeSortedIterator(Collection<I> iters, Comparator<T> tcomparator, boolean distinct) throws IOException {
+        this(iters, tcomparator, distinct, null);
+    }
+
+    /**
+     * Creates a merge that, if distinct, detects duplicates by the keys that
+     * the sources cached for the values they returned, instead of comparing
+     * the values.
+     */
+    MergeSortedIterator(Collection<I> iters, Comparator<T> tcomparator, boolean distinct, SourceKeys<I> sourceKeys) throws IOException {
         this.tcomparator = tcomparator;
         this.distinct = distinct;
+        this.sourceKeys = sourceKeys;
         this.iters = iters;
         this.pq = new PriorityQueue<I>(iters); // NOTE: C must implement Comparable<C>
         readNext();
@@ -27,6 +39,7 @@ public class MergeSortedIterator<T,I extends CloseableIterator<T>> implements Cl
     public MergeSortedIterator(Collection<I> iters, Comparator<I> icomparator, Comparator<T> tcomparator, boolean distinct) throws IOException {
         this.tcomparator = tcomparator;
         this.distinct = distinct;
+        this.sourceKeys = null;
         this.iters = iters;
         int initialSize = Math.max(1, iters.size());
         this.pq = new PriorityQueue<I>(initialSize, icomparator);
@@ -46,7 +59,7 @@ public class MergeSortedIterator<T,I extends CloseableIterator<T>> implements Cl
                     if (iter.hasNext()) {
                         pq.add(iter);
                     }
-                    if (next == null || tcomparator.compare(next, next_) != 0) {
+                    if (!isDuplicate(next_, iter)) {
                         break;
                     }
                     if (pq.isEmpty()) {
@@ -65,6 +78,35 @@ public class MergeSortedIterator<T,I extends CloseableIterator<T>> implements Cl
         this.next = next_;
     }
 
+    /**
+     * Returns true if the candidate, just taken from the source, is a
+     * duplicate of the previously returned value.
+     */
+    private boolean isDuplicate(T candidate, I source) {
+        if (sourceKeys == null) {
+            return next != null && tcomparator.compare(next, candidate) == 0;
+        }
+        Object key = sourceKeys.lastKey(source);
+        if (next != null && sourceKeys.compareKeys(previousKey, key) == 0) {
+            return true;
+        }
+        previousKey = key;
+        return false;
+    }
+
+    /**
+     * Gives access to the key that a source has cached for the value it
+     * returned last, so that duplicates are found without extracting keys
+     * again.
+     */
+    interface SourceKeys<I> {
+
+        Object lastKey(I source);
+
+        int compareKeys(Object key1, Object key2);
+
+    }
+
     @Override
     public boolean hasNext() {
         return next != null;
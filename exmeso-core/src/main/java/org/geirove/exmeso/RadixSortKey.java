@@ -0,0 +1,229 @@
+package org.geirove.exmeso;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * A SortKey for string and byte array keys that sorts chunks with a caching
+ * multikey quicksort instead of a comparison sort. A comparison sort compares
+ * the keys from their first symbol every time, which is wasteful when keys
+ * share long prefixes, like URLs and paths do. Multikey quicksort instead
+ * partitions the keys three ways on the symbol at the current depth, and only
+ * looks at the next symbol within the partition of equal symbols, so each
+ * symbol of a shared prefix is inspected about once per key. The symbols of
+ * the current depth are copied to an int array before partitioning, so that
+ * the partitioning runs over a flat array rather than following a pointer to
+ * each key. Strings are ordered like String.compareTo and byte arrays like
+ * Arrays.compareUnsigned. The sort is stable: values with equal keys keep
+ * their order, so that distinct keeps the first of equal values, like the
+ * comparison sort does.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ * @param <K> The type of the sort key.
+ */
+abstract class RadixSortKey<T,K> extends SortKey<T,K> {
+
+    // ranges smaller than this are insertion sorted
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    // the symbol of a key that has no symbol at the depth, which sorts first
+    private static final int END = -1;
+
+    private RadixSortKey(Function<? super T, ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+        super(keyExtractor, keyComparator);
+    }
+
+    static <T> RadixSortKey<T,String> strings(Function<? super T, String> keyExtractor) {
+        return new RadixSortKey<T,String>(keyExtractor, Comparator.<String>naturalOrder()) {
+            @Override
+            int symbol(String key, int depth) {
+                return depth < key.length() ? key.charAt(depth) : END;
+            }
+        };
+    }
+
+    static <T> RadixSortKey<T,byte[]> bytes(Function<? super T, byte[]> keyExtractor) {
+        return new RadixSortKey<T,byte[]>(keyExtractor, Arrays::compareUnsigned) {
+            @Override
+            int symbol(byte[] key, int depth) {
+                return depth < key.length ? key[depth] & 0xff : END;
+            }
+        };
+    }
+
+    /**
+     * @return the symbol of the key at the depth, or END if the key is not
+     * that long.
+     */
+    abstract int symbol(K key, int depth);
+
+    @Override
+    int sort(T[] values, boolean distinct) {
+        int length = values.length;
+        Object[] keys = new Object[length];
+        boolean sorted = true;
+        for (int i=0; i < length; i++) {
+            keys[i] = key(values[i]);
+            if (sorted && i > 0 && compareKeys(keys[i-1], keys[i]) > 0) {
+                sorted = false;
+            }
+        }
+        if (!sorted) {
+            new Sorter(values, keys).sort(0, length, 0);
+        }
+        if (!distinct || length == 0) {
+            return length;
+        }
+        int size = 1;
+        for (int i=1; i < length; i++) {
+            if (compareKeys(keys[size-1], keys[i]) != 0) {
+                keys[size] = keys[i];
+                values[size++] = values[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The state of one sort: the values, their keys, the symbol cache, and
+     * the original position of each value. Partitioning moves values out of
+     * order, so ranges of equal keys are put back in their original order.
+     */
+    private class Sorter {
+
+        private final Object[] values;
+        private final Object[] keys;
+        private final int[] symbols;
+        private final int[] positions;
+        private final Object[] originalValues;
+        private final Object[] originalKeys;
+
+        Sorter(Object[] values, Object[] keys) {
+            this.values = values;
+            this.keys = keys;
+            this.symbols = new int[values.length];
+            this.positions = new int[values.length];
+            for (int i=0; i < positions.length; i++) {
+                positions[i] = i;
+            }
+            this.originalValues = values.clone();
+            this.originalKeys = keys.clone();
+        }
+
+        @SuppressWarnings("unchecked")
+        private int symbol(int i, int depth) {
+            return RadixSortKey.this.symbol((K)keys[i], depth);
+        }
+
+        private void swap(int i, int j) {
+            Object key = keys[i];
+            keys[i] = keys[j];
+            keys[j] = key;
+            Object value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+            int symbol = symbols[i];
+            symbols[i] = symbols[j];
+            symbols[j] = symbol;
+            int position = positions[i];
+            positions[i] = positions[j];
+            positions[j] = position;
+        }
+
+        /**
+         * Sorts the range [from, to) of keys that are known to be equal in
+         * their first 'depth' symbols. The smaller partitions are sorted
+         * recursively, and the partition of equal symbols by the loop at the
+         * next depth.
+         */
+        void sort(int from, int to, int depth) {
+            while (to - from >= INSERTION_SORT_THRESHOLD) {
+                for (int i=from; i < to; i++) {
+                    symbols[i] = symbol(i, depth);
+                }
+                int pivot = medianOfThree(symbols[from], symbols[(from + to) >>> 1], symbols[to - 1]);
+
+                // [from, lt) < pivot, [lt, i) == pivot, (gt, to) > pivot
+                int lt = from;
+                int gt = to - 1;
+                int i = from;
+                while (i <= gt) {
+                    int symbol = symbols[i];
+                    if (symbol < pivot) {
+                        swap(lt++, i++);
+                    } else if (symbol > pivot) {
+                        swap(i, gt--);
+                    } else {
+                        i++;
+                    }
+                }
+                sort(from, lt, depth);
+                sort(gt + 1, to, depth);
+                if (pivot == END) {
+                    // the keys of the middle partition are all equal
+                    restoreOrder(lt, gt + 1);
+                    return;
+                }
+                from = lt;
+                to = gt + 1;
+                depth++;
+            }
+            insertionSort(from, to, depth);
+        }
+
+        private int medianOfThree(int a, int b, int c) {
+            if (a < b) {
+                return b < c ? b : (a < c ? c : a);
+            } else {
+                return a < c ? a : (b < c ? c : b);
+            }
+        }
+
+        /**
+         * Puts a range of equal keys back in the order of their original
+         * positions.
+         */
+        private void restoreOrder(int from, int to) {
+            Arrays.sort(positions, from, to);
+            for (int i=from; i < to; i++) {
+                values[i] = originalValues[positions[i]];
+                keys[i] = originalKeys[positions[i]];
+            }
+        }
+
+        private void insertionSort(int from, int to, int depth) {
+            for (int i=from + 1; i < to; i++) {
+                for (int j=i; j > from && compareStable(j - 1, j, depth) > 0; j--) {
+                    swap(j - 1, j);
+                }
+            }
+        }
+
+        private int compareStable(int i, int j, int depth) {
+            int c = compare(i, j, depth);
+            return c != 0 ? c : Integer.compare(positions[i], positions[j]);
+        }
+
+        /**
+         * Compares two keys that are known to be equal in their first 'depth'
+         * symbols.
+         */
+        private int compare(int i, int j, int depth) {
+            while (true) {
+                int s1 = symbol(i, depth);
+                int s2 = symbol(j, depth);
+                if (s1 != s2) {
+                    return s1 < s2 ? -1 : 1;
+                } else if (s1 == END) {
+                    return 0;
+                }
+                depth++;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,457 @@
+package org.geirove.exmeso;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.geirove.exmeso.ExternalMergeSort.Serializer;
+
+/**
+ * A sorted run stored in a block structured file. Each block contains a
+ * fixed number of values written by the serializer, and the file ends with
+ * a sparse index holding the offset and first value of every block, and a
+ * footer with the record count and a checksum. The index makes it possible
+ * to seek to a value, do range scans and split the run, all without reading
+ * the whole file.
+ * <p>
+ * File layout, all numbers big-endian:
+ * <pre>
+ * block*  : int length, byte[length] values
+ * index   : (long offset, int records, int length, byte[length] first value)*, int length, byte[length] last value
+ * footer  : long indexOffset, int blocks, long records, long checksum, int version, long magic
+ * </pre>
+ * The checksum is a CRC32 of everything that precedes the footer.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values in the run.
+ */
+public class RunFile<T> {
+
+    private static final long MAGIC = 0x65786d65736f5246L; // "exmesoRF"
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 8 + 4 + 8 + 8 + 4 + 8;
+
+    private final File file;
+    private final Serializer<T> serializer;
+    private final Comparator<T> comparator;
+
+    private final long indexOffset;
+    private final long recordCount;
+    private final long checksum;
+    private final List<Block<T>> blocks;
+    private final T max;
+
+    private RunFile(File file, Serializer<T> serializer, Comparator<T> comparator,
+            long indexOffset, long recordCount, long checksum, List<Block<T>> blocks, T max) {
+        this.file = file;
+        this.serializer = serializer;
+        this.comparator = comparator;
+        this.indexOffset = indexOffset;
+        this.recordCount = recordCount;
+        this.checksum = checksum;
+        this.blocks = blocks;
+        this.max = max;
+    }
+
+    /**
+     * An entry in the sparse index of a run file.
+     */
+    public static class Block<T> {
+
+        private final long offset;
+        private final int recordCount;
+        private final T firstValue;
+
+        private Block(long offset, int recordCount, T firstValue) {
+            this.offset = offset;
+            this.recordCount = recordCount;
+            this.firstValue = firstValue;
+        }
+
+        /**
+         * Returns the byte offset of the block in the run file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        public T getFirstValue() {
+            return firstValue;
+        }
+
+        @Override
+        public String toString() {
+            return "Block[offset=" + offset + ", records=" + recordCount + ", first=" + firstValue + "]";
+        }
+    }
+
+    /**
+     * Writes the values, which must already be sorted, to a new run file.
+     * @param file The file to write.
+     * @param values Iterator containing the sorted values.
+     * @param serializer Serializer used to write the values in each block.
+     * @param comparator Comparator that gives the sort order of the values.
+     * @param blockSize The number of values in each block.
+     * @return the written run file.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public static <T> RunFile<T> write(File file, Iterator<T> values, Serializer<T> serializer, Comparator<T> comparator, int blockSize) throws IOException {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        CRC32 crc = new CRC32();
+        List<Block<T>> blocks = new ArrayList<Block<T>>();
+        List<byte[]> firstValues = new ArrayList<byte[]>();
+        List<T> block = new ArrayList<T>(blockSize);
+        long recordCount = 0;
+        long offset = 0;
+        T last = null;
+        DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536), crc));
+        try {
+            while (values.hasNext()) {
+                block.clear();
+                while (block.size() < blockSize && values.hasNext()) {
+                    block.add(values.next());
+                }
+                byte[] data = serialize(serializer, block.iterator());
+                out.writeInt(data.length);
+                out.write(data);
+                blocks.add(new Block<T>(offset, block.size(), block.get(0)));
+                firstValues.add(serialize(serializer, Collections.singletonList(block.get(0)).iterator()));
+                offset += 4 + data.length;
+                recordCount += block.size();
+                last = block.get(block.size() - 1);
+            }
+            long indexOffset = offset;
+            for (int i=0; i < blocks.size(); i++) {
+                Block<T> b = blocks.get(i);
+                out.writeLong(b.offset);
+                out.writeInt(b.recordCount);
+                writeBytes(out, firstValues.get(i));
+            }
+            writeBytes(out, last == null ? new byte[0] : serialize(serializer, Collections.singletonList(last).iterator()));
+            out.flush();
+            long checksum = crc.getValue();
+            out.writeLong(indexOffset);
+            out.writeInt(blocks.size());
+            out.writeLong(recordCount);
+            out.writeLong(checksum);
+            out.writeInt(VERSION);
+            out.writeLong(MAGIC);
+            out.flush();
+            return new RunFile<T>(file, serializer, comparator, indexOffset, recordCount, checksum, Collections.unmodifiableList(blocks), last);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Opens an existing run file. Only the footer and the index are read.
+     * @param file The run file.
+     * @param serializer Serializer used to read the values in each block.
+     * @param comparator Comparator that gives the sort order of the values.
+     * @return the run file.
+     * @throws IOException if the file is not a run file or something fails when doing I/O.
+     */
+    public static <T> RunFile<T> open(File file, Serializer<T> serializer, Comparator<T> comparator) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < FOOTER_SIZE) {
+                throw new IOException("Not a run file: " + file);
+            }
+            raf.seek(length - FOOTER_SIZE);
+            long indexOffset = raf.readLong();
+            int blockCount = raf.readInt();
+            long recordCount = raf.readLong();
+            long checksum = raf.readLong();
+            int version = raf.readInt();
+            long magic = raf.readLong();
+            if (magic != MAGIC) {
+                throw new IOException("Not a run file: " + file);
+            }
+            if (version != VERSION) {
+                throw new IOException("Unsupported run file version " + version + ": " + file);
+            }
+            raf.seek(indexOffset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new RandomAccessFileInputStream(raf)));
+            List<Block<T>> blocks = new ArrayList<Block<T>>(blockCount);
+            for (int i=0; i < blockCount; i++) {
+                long offset = in.readLong();
+                int records = in.readInt();
+                T firstValue = deserialize(serializer, readBytes(in));
+                blocks.add(new Block<T>(offset, records, firstValue));
+            }
+            T max = deserialize(serializer, readBytes(in));
+            return new RunFile<T>(file, serializer, comparator, indexOffset, recordCount, checksum, Collections.unmodifiableList(blocks), max);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Returns the smallest value in the run, or null if the run is empty.
+     */
+    public T getMin() {
+        return blocks.isEmpty() ? null : blocks.get(0).firstValue;
+    }
+
+    /**
+     * Returns the largest value in the run, or null if the run is empty.
+     */
+    public T getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the sparse index of the run. The block offsets can be used to
+     * split the run into parts that can be read independently.
+     */
+    public List<Block<T>> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Reads the whole file and checks that the checksum in the footer matches.
+     * @throws IOException if the checksum does not match or something fails when doing I/O.
+     */
+    public void verify() throws IOException {
+        CRC32 crc = new CRC32();
+        long length = file.length() - FOOTER_SIZE;
+        CheckedInputStream in = new CheckedInputStream(new FileInputStream(file), crc);
+        try {
+            byte[] buffer = new byte[65536];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new IOException("Run file is truncated: " + file);
+                }
+                remaining -= read;
+            }
+        } finally {
+            in.close();
+        }
+        if (crc.getValue() != checksum) {
+            throw new IOException("Run file checksum mismatch: " + file);
+        }
+    }
+
+    /**
+     * Returns an iterator over all values in the run.
+     * @return an iterator over the values in sorted order.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public CloseableIterator<T> iterator() throws IOException {
+        return new RunFileIterator<T>(this, 0, null, null);
+    }
+
+    /**
+     * Returns an iterator over the values that are greater than or equal to
+     * the given key. Only the block that may contain the key is scanned.
+     * @param key The key to seek to.
+     * @return an iterator over the values in sorted order.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public CloseableIterator<T> seek(T key) throws IOException {
+        return range(key, null);
+    }
+
+    /**
+     * Returns an iterator over the values in the range [from, to).
+     * @param from The inclusive lower bound, or null if unbounded.
+     * @param to The exclusive upper bound, or null if unbounded.
+     * @return an iterator over the values in sorted order.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public CloseableIterator<T> range(T from, T to) throws IOException {
+        int block = from == null ? 0 : findBlock(from);
+        return new RunFileIterator<T>(this, block, from, to);
+    }
+
+    private int findBlock(T key) {
+        // the last block whose first value is less than the key, as equal
+        // values may also continue from the preceding block
+        int low = 0;
+        int high = blocks.size() - 1;
+        int result = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (comparator.compare(blocks.get(mid).firstValue, key) < 0) {
+                result = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "RunFile[records=" + recordCount + ", blocks=" + blocks.size() + ", file=" + file + "]";
+    }
+
+    private static class RunFileIterator<T> implements CloseableIterator<T> {
+
+        private final RunFile<T> run;
+        private final T to;
+        private final DataInputStream input;
+
+        private long position;
+        private Iterator<T> block;
+        private T next;
+
+        private RunFileIterator(RunFile<T> run, int startBlock, T from, T to) throws IOException {
+            this.run = run;
+            this.to = to;
+            this.block = Collections.<T>emptyList().iterator();
+            FileInputStream fis = new FileInputStream(run.file);
+            try {
+                if (startBlock < run.blocks.size()) {
+                    this.position = run.blocks.get(startBlock).offset;
+                    fis.getChannel().position(position);
+                } else {
+                    this.position = run.indexOffset;
+                }
+                this.input = new DataInputStream(new BufferedInputStream(fis, 65536));
+                readNext();
+                while (from != null && next != null && run.comparator.compare(next, from) < 0) {
+                    readNext();
+                }
+            } catch (IOException e) {
+                fis.close();
+                throw e;
+            } catch (RuntimeException e) {
+                fis.close();
+                throw e;
+            }
+            if (next == null) {
+                input.close();
+            }
+        }
+
+        private void readNext() throws IOException {
+            while (!block.hasNext()) {
+                if (position >= run.indexOffset) {
+                    next = null;
+                    return;
+                }
+                byte[] data = readBytes(input);
+                position += 4 + data.length;
+                block = run.serializer.readValues(new ByteArrayInputStream(data));
+            }
+            next = block.next();
+            if (to != null && run.comparator.compare(next, to) >= 0) {
+                next = null;
+                position = run.indexOffset;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            T result = next;
+            try {
+                readNext();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+
+    }
+
+    private static class RandomAccessFileInputStream extends InputStream {
+
+        private final RandomAccessFile raf;
+
+        private RandomAccessFileInputStream(RandomAccessFile raf) {
+            this.raf = raf;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return raf.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return raf.read(b, off, len);
+        }
+    }
+
+    private static <T> byte[] serialize(Serializer<T> serializer, Iterator<T> values) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.writeValues(values, out);
+        return out.toByteArray();
+    }
+
+    private static <T> T deserialize(Serializer<T> serializer, byte[] data) throws IOException {
+        if (data.length == 0) {
+            return null;
+        }
+        Iterator<T> iter = serializer.readValues(new ByteArrayInputStream(data));
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return data;
+    }
+
+}
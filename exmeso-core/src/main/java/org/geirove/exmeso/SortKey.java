@@ -0,0 +1,76 @@
+package org.geirove.exmeso;
+
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * A comparator that orders values by a key extracted from each value. It is
+ * used as the comparator of an ExternalMergeSort configured with
+ * Builder.withSortKey(...), and lets the sorting of chunks and the merging of
+ * chunk files compute the key once per value instead of once per comparison.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ * @param <K> The type of the sort key.
+ */
+class SortKey<T,K> implements Comparator<T> {
+
+    private final Function<? super T, ? extends K> keyExtractor;
+    private final Comparator<? super K> keyComparator;
+
+    SortKey(Function<? super T, ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+        this.keyExtractor = keyExtractor;
+        this.keyComparator = keyComparator;
+    }
+
+    private static class Entry<T,K> {
+
+        private final T value;
+        private final K key;
+
+        private Entry(T value, K key) {
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    @Override
+    public int compare(T o1, T o2) {
+        return keyComparator.compare(keyExtractor.apply(o1), keyExtractor.apply(o2));
+    }
+
+    Object key(T value) {
+        return keyExtractor.apply(value);
+    }
+
+    @SuppressWarnings("unchecked")
+    int compareKeys(Object k1, Object k2) {
+        return keyComparator.compare((K)k1, (K)k2);
+    }
+
+    /**
+     * Sorts the values by decorating each value with its key, sorting the
+     * decorated values and then writing the values back in sorted order.
+     * @return the number of values, which is smaller than the array length
+     * if 'distinct' is true and there were duplicates.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    int sort(T[] values, boolean distinct) {
+        Entry<T,K>[] entries = new Entry[values.length];
+        for (int i=0; i < values.length; i++) {
+            entries[i] = new Entry<T,K>(values[i], keyExtractor.apply(values[i]));
+        }
+        ExternalMergeSort.sortAdaptive(entries, (e1, e2) -> keyComparator.compare(e1.key, e2.key));
+        int size = 0;
+        K lastKey = null;
+        for (Entry<T,K> entry : entries) {
+            if (!distinct || size == 0 || keyComparator.compare(lastKey, entry.key) != 0) {
+                values[size++] = entry.value;
+                lastKey = entry.key;
+            }
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,259 @@
+package org.geirove.exmeso;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A durable record of the sorted chunk files that an external merge sort
+ * has completed. The manifest is rewritten every time a chunk file has been
+ * written, either from the input or from a partial merge, so that a sort
+ * that is interrupted can be continued with ExternalMergeSort.resume(...)
+ * without redoing work that was already completed.
+ *
+ * @author grove@geirove.org
+ */
+public class SortManifest {
+
+    private static final String HEADER = "# exmeso sort manifest";
+    private static final String ENCODING = "UTF-8";
+
+    private final File file;
+    private final List<Run> runs = new ArrayList<Run>();
+    private long inputCount;
+
+    private SortManifest(File file) {
+        this.file = file;
+    }
+
+    /**
+     * A completed and sorted chunk file.
+     */
+    public static class Run {
+
+        private final File file;
+        private final long recordCount;
+        private final long byteSize;
+        private final int level;
+
+        private Run(File file, long recordCount, long byteSize, int level) {
+            this.file = file;
+            this.recordCount = recordCount;
+            this.byteSize = byteSize;
+            this.level = level;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getRecordCount() {
+            return recordCount;
+        }
+
+        public long getByteSize() {
+            return byteSize;
+        }
+
+        /**
+         * Returns the merge level of the run. Runs written from the input have
+         * level 0, while runs written by a partial merge have a level one
+         * higher than the highest level of the runs that were merged.
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public String toString() {
+            return "Run[level=" + level + ", records=" + recordCount + ", bytes=" + byteSize + ", file=" + file + "]";
+        }
+    }
+
+    /**
+     * Creates a new and empty manifest that will be stored in the given file.
+     * Any existing file will be overwritten once the first run completes.
+     * @param file The manifest file.
+     * @return a new manifest.
+     */
+    public static SortManifest create(File file) {
+        return new SortManifest(file);
+    }
+
+    /**
+     * Loads a manifest previously written by an interrupted sort.
+     * @param file The manifest file.
+     * @return the loaded manifest.
+     * @throws IOException if the manifest cannot be read or a run file is missing or incomplete.
+     */
+    public static SortManifest load(File file) throws IOException {
+        SortManifest result = new SortManifest(file);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Not a sort manifest: " + file);
+            }
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("input=")) {
+                    result.inputCount = Long.parseLong(line.substring("input=".length()));
+                } else if (line.startsWith("run=")) {
+                    String[] fields = line.substring("run=".length()).split("\t", 4);
+                    if (fields.length != 4) {
+                        throw new IOException("Invalid run in sort manifest " + file + ": " + line);
+                    }
+                    Run run = new Run(new File(fields[3]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), Integer.parseInt(fields[0]));
+                    if (run.file.length() != run.byteSize) {
+                        throw new IOException("Run file is missing or incomplete: " + run);
+                    }
+                    result.runs.add(run);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid sort manifest " + file + ": " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of input records that have been written to
+     * runs, either directly or through partial merges. These are skipped
+     * when a sort is resumed.
+     */
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    /**
+     * Returns the completed runs that remain to be merged, in merge order.
+     */
+    public List<Run> getRuns() {
+        return Collections.unmodifiableList(runs);
+    }
+
+    public boolean isEmpty() {
+        return inputCount == 0 && runs.isEmpty();
+    }
+
+    List<File> getRunFiles() {
+        List<File> result = new ArrayList<File>(runs.size());
+        for (Run run : runs) {
+            result.add(run.file);
+        }
+        return result;
+    }
+
+    void addRun(File runFile, long recordCount, long inputRecords) throws IOException {
+        runs.add(new Run(runFile, recordCount, runFile.length(), 0));
+        inputCount += inputRecords;
+        save();
+    }
+
+    void mergedRuns(List<File> mergedFiles, File runFile, long recordCount) throws IOException {
+        int level = 0;
+        for (int i=runs.size()-1; i >= 0; i--) {
+            Run run = runs.get(i);
+            if (mergedFiles.contains(run.file)) {
+                level = Math.max(level, run.level + 1);
+                runs.remove(i);
+            }
+        }
+        runs.add(new Run(runFile, recordCount, runFile.length(), level));
+        save();
+    }
+
+    void delete() {
+        file.delete();
+    }
+
+    /**
+     * Deletes the chunk files in the directory that are not runs of this
+     * manifest. These are left by the interrupted sort, either partly written
+     * or already merged into a recorded run, and the sort would otherwise
+     * never remove them.
+     * @param directory The temporary directory of the sort.
+     * @param prefixes The name prefixes of the chunk files.
+     */
+    void deleteUnlistedFiles(File directory, String... prefixes) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> runFiles = new ArrayList<File>(runs.size());
+        for (Run run : runs) {
+            runFiles.add(run.file.getAbsoluteFile());
+        }
+        for (File f : files) {
+            for (String prefix : prefixes) {
+                if (f.getName().startsWith(prefix) && !runFiles.contains(f.getAbsoluteFile())) {
+                    f.delete();
+                    break;
+                }
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        // write a new copy and then replace the old one, so that a crash
+        // never leaves a partially written manifest behind
+        File tmpFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmpFile);
+        try {
+            Writer writer = new OutputStreamWriter(out, ENCODING);
+            writer.write(HEADER + "\n");
+            writer.write("input=" + inputCount + "\n");
+            for (Run run : runs) {
+                writer.write("run=" + run.level + "\t" + run.recordCount + "\t" + run.byteSize + "\t" + run.file.getAbsolutePath() + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            throw new IOException("Could not replace sort manifest: " + file);
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Forces the entries of the directory to the device, so that a file
+     * that was renamed into it survives a crash. Some platforms cannot open
+     * directories, and there this is left to the file system.
+     */
+    static void syncDirectory(File directory) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SortManifest[file=" + file + ", input=" + inputCount + ", runs=" + runs + "]";
+    }
+
+}
@@ -0,0 +1,336 @@
+package org.geirove.exmeso;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A declarative sort order made of fields that are compared one after the
+ * other, e.g. SortOrder.byLong(Event::getTime).thenByString(Event::getName).
+ * The order is compiled into a normalized key per value, which is computed
+ * once per value when sorting chunks and merging chunk files, so that each
+ * comparison is a single primitive comparison instead of a chain of getter
+ * calls. An order with a single numeric field is compared as a long, and any
+ * other order as a byte array whose unsigned lexicographic order is the sort
+ * order. Strings are compared like String.compareTo. The getters must not
+ * return null. Instances are immutable.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ */
+public final class SortOrder<T> {
+
+    private final List<Field<T>> fields;
+
+    private SortOrder(List<Field<T>> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * A field of the order, which writes its part of the normalized key.
+     */
+    private abstract static class Field<T> {
+
+        final boolean descending;
+
+        Field(boolean descending) {
+            this.descending = descending;
+        }
+
+        abstract Field<T> reverse();
+
+        /**
+         * @return the field as a long, ordered like the field, if the field
+         * is numeric.
+         */
+        long toLong(T value) {
+            throw new UnsupportedOperationException();
+        }
+
+        boolean isNumeric() {
+            return false;
+        }
+
+        abstract void write(T value, KeyWriter out);
+
+    }
+
+    private static class IntField<T> extends Field<T> {
+
+        private final ToIntFunction<? super T> getter;
+
+        IntField(ToIntFunction<? super T> getter, boolean descending) {
+            super(descending);
+            this.getter = getter;
+        }
+
+        @Override
+        Field<T> reverse() {
+            return new IntField<T>(getter, !descending);
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        long toLong(T value) {
+            long v = getter.applyAsInt(value);
+            return descending ? ~v : v;
+        }
+
+        @Override
+        void write(T value, KeyWriter out) {
+            out.writeInt(getter.applyAsInt(value) ^ Integer.MIN_VALUE);
+        }
+
+    }
+
+    private static class LongField<T> extends Field<T> {
+
+        private final ToLongFunction<? super T> getter;
+
+        LongField(ToLongFunction<? super T> getter, boolean descending) {
+            super(descending);
+            this.getter = getter;
+        }
+
+        @Override
+        Field<T> reverse() {
+            return new LongField<T>(getter, !descending);
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        @Override
+        long toLong(T value) {
+            long v = getter.applyAsLong(value);
+            return descending ? ~v : v;
+        }
+
+        @Override
+        void write(T value, KeyWriter out) {
+            out.writeLong(getter.applyAsLong(value) ^ Long.MIN_VALUE);
+        }
+
+    }
+
+    private static class DoubleField<T> extends Field<T> {
+
+        private final ToDoubleFunction<? super T> getter;
+
+        DoubleField(ToDoubleFunction<? super T> getter, boolean descending) {
+            super(descending);
+            this.getter = getter;
+        }
+
+        @Override
+        Field<T> reverse() {
+            return new DoubleField<T>(getter, !descending);
+        }
+
+        @Override
+        boolean isNumeric() {
+            return true;
+        }
+
+        /**
+         * Maps the double to a long with the order of Double.compare, where
+         * -0.0 is smaller than 0.0 and NaN is larger than everything else.
+         */
+        private long sortable(T value) {
+            long bits = Double.doubleToLongBits(getter.applyAsDouble(value));
+            // negative numbers get all their other bits flipped
+            return bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+
+        @Override
+        long toLong(T value) {
+            long v = sortable(value);
+            return descending ? ~v : v;
+        }
+
+        @Override
+        void write(T value, KeyWriter out) {
+            out.writeLong(sortable(value) ^ Long.MIN_VALUE);
+        }
+
+    }
+
+    private static class StringField<T> extends Field<T> {
+
+        private final Function<? super T, String> getter;
+
+        StringField(Function<? super T, String> getter, boolean descending) {
+            super(descending);
+            this.getter = getter;
+        }
+
+        @Override
+        Field<T> reverse() {
+            return new StringField<T>(getter, !descending);
+        }
+
+        @Override
+        void write(T value, KeyWriter out) {
+            // every char is written after a marker byte that is larger than the
+            // terminator, so a string sorts before any string it is a prefix of
+            String s = getter.apply(value);
+            for (int i=0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                out.writeByte(1);
+                out.writeByte(c >>> 8);
+                out.writeByte(c);
+            }
+            out.writeByte(0);
+        }
+
+    }
+
+    /**
+     * A growable buffer that normalized keys are written to.
+     */
+    private static class KeyWriter {
+
+        private byte[] bytes = new byte[32];
+        private int size;
+
+        private void ensureCapacity(int n) {
+            if (size + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(size + n, bytes.length * 2));
+            }
+        }
+
+        void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[size++] = (byte)b;
+        }
+
+        void writeInt(int v) {
+            ensureCapacity(4);
+            for (int shift=24; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte)(v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensureCapacity(8);
+            for (int shift=56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte)(v >>> shift);
+            }
+        }
+
+        void invertFrom(int start) {
+            for (int i=start; i < size; i++) {
+                bytes[i] = (byte)~bytes[i];
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+    }
+
+    private static <T> SortOrder<T> of(Field<T> field) {
+        return new SortOrder<T>(Collections.singletonList(field));
+    }
+
+    private SortOrder<T> then(Field<T> field) {
+        List<Field<T>> result = new ArrayList<Field<T>>(fields);
+        result.add(field);
+        return new SortOrder<T>(result);
+    }
+
+    public static <T> SortOrder<T> byInt(ToIntFunction<? super T> getter) {
+        return of(new IntField<T>(getter, false));
+    }
+
+    public static <T> SortOrder<T> byLong(ToLongFunction<? super T> getter) {
+        return of(new LongField<T>(getter, false));
+    }
+
+    public static <T> SortOrder<T> byDouble(ToDoubleFunction<? super T> getter) {
+        return of(new DoubleField<T>(getter, false));
+    }
+
+    public static <T> SortOrder<T> byString(Function<? super T, String> getter) {
+        return of(new StringField<T>(getter, false));
+    }
+
+    public SortOrder<T> thenByInt(ToIntFunction<? super T> getter) {
+        return then(new IntField<T>(getter, false));
+    }
+
+    public SortOrder<T> thenByLong(ToLongFunction<? super T> getter) {
+        return then(new LongField<T>(getter, false));
+    }
+
+    public SortOrder<T> thenByDouble(ToDoubleFunction<? super T> getter) {
+        return then(new DoubleField<T>(getter, false));
+    }
+
+    public SortOrder<T> thenByString(Function<? super T, String> getter) {
+        return then(new StringField<T>(getter, false));
+    }
+
+    /**
+     * @return an order where the last field is sorted in descending order.
+     */
+    public SortOrder<T> descending() {
+        List<Field<T>> result = new ArrayList<Field<T>>(fields);
+        result.set(result.size() - 1, result.get(result.size() - 1).reverse());
+        return new SortOrder<T>(result);
+    }
+
+    /**
+     * @return the reverse of this order, like Comparator.reversed().
+     */
+    public SortOrder<T> reversed() {
+        List<Field<T>> result = new ArrayList<Field<T>>(fields.size());
+        for (Field<T> field : fields) {
+            result.add(field.reverse());
+        }
+        return new SortOrder<T>(result);
+    }
+
+    /**
+     * @return the normalized key of the value, whose unsigned lexicographic
+     * order is the sort order.
+     */
+    byte[] normalizedKey(T value) {
+        KeyWriter out = new KeyWriter();
+        for (Field<T> field : fields) {
+            int start = out.size;
+            field.write(value, out);
+            if (field.descending) {
+                out.invertFrom(start);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a comparator that compares values by their normalized keys. It
+     * is a SortKey, so ExternalMergeSort computes the key once per value.
+     */
+    public Comparator<T> comparator() {
+        if (fields.size() == 1 && fields.get(0).isNumeric()) {
+            final Field<T> field = fields.get(0);
+            return new SortKey<T,Long>(field::toLong, Long::compare);
+        }
+        return RadixSortKey.bytes(this::normalizedKey);
+    }
+
+}
@@ -0,0 +1,184 @@
+package org.geirove.exmeso;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Flow.Publisher that performs an external merge sort and publishes the
+ * sorted values. The sort is started on the executor when the subscriber
+ * first requests values, and values are only read from the merge when there
+ * is outstanding demand. The input iterator can only be consumed once, so
+ * the publisher accepts a single subscriber.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ */
+public class SortPublisher<T> implements Flow.Publisher<T> {
+
+    private final ExternalMergeSort<T> sort;
+    private final Iterator<T> values;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    SortPublisher(ExternalMergeSort<T> sort, Iterator<T> values, Executor executor) {
+        this.sort = sort;
+        this.values = values;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        // claim the input before any subscriber can request values from it
+        if (!subscribed.compareAndSet(false, true)) {
+            // rule 1.9 requires onSubscribe before onError
+            subscriber.onSubscribe(NoopSubscription.INSTANCE);
+            subscriber.onError(new IllegalStateException("SortPublisher only supports a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new SortSubscription(subscriber));
+    }
+
+    /**
+     * The subscription of a rejected subscriber, which has nothing to deliver.
+     */
+    private static class NoopSubscription implements Flow.Subscription {
+
+        private static final NoopSubscription INSTANCE = new NoopSubscription();
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+
+    }
+
+    private class SortSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        // only accessed by the drain loop
+        private CloseableIterator<T> sorted;
+        private boolean done;
+
+        private SortSubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                long r;
+                do {
+                    r = requested.get();
+                    if (r == Long.MAX_VALUE) {
+                        break;
+                    }
+                } while (!requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            }
+            try {
+                if (cancelled) {
+                    finish();
+                    return;
+                }
+                if (error != null) {
+                    finish();
+                    subscriber.onError(error);
+                    return;
+                }
+                long r = requested.get();
+                if (r == 0) {
+                    return;
+                }
+                if (sorted == null) {
+                    sorted = sort.mergeSort(values);
+                }
+                long emitted = 0;
+                while (emitted != r && sorted.hasNext()) {
+                    if (cancelled) {
+                        finish();
+                        return;
+                    }
+                    subscriber.onNext(sorted.next());
+                    emitted++;
+                }
+                if (!sorted.hasNext()) {
+                    finish();
+                    subscriber.onComplete();
+                } else if (r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+            } catch (IOException e) {
+                closeAndSignal(e);
+            } catch (RuntimeException e) {
+                closeAndSignal(e);
+            }
+        }
+
+        private void closeAndSignal(Exception e) {
+            try {
+                finish();
+            } catch (IOException ce) {
+                e.addSuppressed(ce);
+            }
+            subscriber.onError(e);
+        }
+
+        private void finish() throws IOException {
+            done = true;
+            if (sorted != null) {
+                CloseableIterator<T> iter = sorted;
+                sorted = null;
+                iter.close();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,331 @@
+package org.geirove.exmeso;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares memory, open files, I/O threads and temporary disk space between
+ * the sorts of one JVM. Attach it to each sort with
+ * Builder.withResourceManager(...). Every call to mergeSort then first
+ * requests a grant of values to hold in memory, which is chunkSize plus
+ * residualSize, and of files to keep open, which is maxOpenFiles plus the
+ * output file of partial merges. Requests are served in arrival order, and
+ * each is granted at most an equal share of what is available among the
+ * requests that are waiting, but never less than a sixteenth of the
+ * requested chunk size and a fan-in of two. The sort then runs with the
+ * granted chunk size and fan-in, and returns the grant when its result
+ * iterator is closed. The chunk files written by all attached sorts count
+ * against the temporary space quota, and a sort fails with an IOException
+ * rather than exceed it.
+ *
+ * @author grove@geirove.org
+ */
+public class SortResourceManager {
+
+    // the smallest grant of values, as a fraction of the requested values
+    private static final int MIN_VALUES_DIVISOR = 16;
+
+    // a merge needs at least two input files and one output file
+    private static final int MIN_FILES = 3;
+
+    private final long maxValues;
+    private final int maxOpenFiles;
+    private final long maxTempBytes;
+    private final Executor executor;
+
+    private final LinkedList<Request> queue = new LinkedList<Request>();
+    private long availableValues;
+    private int availableFiles;
+
+    private final Map<File,Long> tempFiles = new HashMap<File,Long>();
+    private long tempBytes;
+
+    private SortResourceManager(Builder builder) {
+        this.maxValues = builder.maxValues;
+        this.maxOpenFiles = builder.maxOpenFiles;
+        this.maxTempBytes = builder.maxTempBytes;
+        this.executor = builder.executor != null ? builder.executor : Executors.newFixedThreadPool(builder.ioThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "exmeso-io-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.availableValues = maxValues;
+        this.availableFiles = maxOpenFiles;
+    }
+
+    /**
+     * Fluent API building a new SortResourceManager.
+     * @return Builder instance that can be used to set the budgets and in the end create a new instance.
+     */
+    public static Builder newManager() {
+        return new Builder();
+    }
+
+    public static class Builder {
+
+        private long maxValues = 1000000;
+        private int maxOpenFiles = 256;
+        private long maxTempBytes = Long.MAX_VALUE;
+        private int ioThreads = Runtime.getRuntime().availableProcessors();
+        private Executor executor;
+
+        private Builder() {
+        }
+
+        /**
+         * Specifies the number of values that all sorts together may hold in
+         * memory. The default is 1000000.
+         * @param maxValues Number of values.
+         * @return this
+         */
+        public Builder withMaxValues(long maxValues) {
+            if (maxValues < 1) {
+                throw new IllegalArgumentException("maxValues must be positive");
+            }
+            this.maxValues = maxValues;
+            return this;
+        }
+
+        /**
+         * Specifies the number of chunk files that all sorts together may have
+         * open. The default is 256.
+         * @param maxOpenFiles Number of open files.
+         * @return this
+         */
+        public Builder withMaxOpenFiles(int maxOpenFiles) {
+            if (maxOpenFiles < MIN_FILES) {
+                throw new IllegalArgumentException("maxOpenFiles must be at least " + MIN_FILES);
+            }
+            this.maxOpenFiles = maxOpenFiles;
+            return this;
+        }
+
+        /**
+         * Specifies the number of bytes that the chunk files of all sorts
+         * together may take up on disk. The default is no limit.
+         * @param maxTempBytes Number of bytes.
+         * @return this
+         */
+        public Builder withMaxTempBytes(long maxTempBytes) {
+            this.maxTempBytes = maxTempBytes;
+            return this;
+        }
+
+        /**
+         * Specifies the number of threads of the shared pool that runs the
+         * asynchronous work of the sorts. The default is the number of
+         * available processors.
+         * @param ioThreads Number of threads.
+         * @return this
+         */
+        public Builder withIoThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        /**
+         * Specifies an executor to run the asynchronous work of the sorts,
+         * instead of a pool created by the manager.
+         * @param executor The executor.
+         * @return this
+         */
+        public Builder withExecutor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public SortResourceManager build() {
+            return new SortResourceManager(this);
+        }
+    }
+
+    /**
+     * The memory and open files granted to a sort.
+     */
+    static class Grant {
+
+        private final int values;
+        private final int files;
+        private boolean released;
+
+        private Grant(int values, int files) {
+            this.values = values;
+            this.files = files;
+        }
+
+        int getValues() {
+            return values;
+        }
+
+        int getFiles() {
+            return files;
+        }
+
+    }
+
+    private static class Request {
+
+        private final int values;
+        private final int files;
+        private Grant grant;
+
+        private Request(int values, int files) {
+            this.values = values;
+            this.files = files;
+        }
+
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the number of values that can currently be granted.
+     */
+    public synchronized long getAvailableValues() {
+        return availableValues;
+    }
+
+    /**
+     * @return the number of open files that can currently be granted.
+     */
+    public synchronized int getAvailableOpenFiles() {
+        return availableFiles;
+    }
+
+    /**
+     * @return the number of bytes taken up by chunk files that still exist.
+     */
+    public long getTempBytes() {
+        synchronized (tempFiles) {
+            pruneTempFiles();
+            return tempBytes;
+        }
+    }
+
+    /**
+     * Waits for a grant of memory and open files. The grant may be smaller
+     * than requested.
+     * @param values The number of values the sort would like to hold in memory.
+     * @param files The number of files the sort would like to keep open.
+     * @return the grant, which must be released.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    synchronized Grant acquire(int values, int files) throws InterruptedIOException {
+        Request request = new Request(values, files);
+        queue.add(request);
+        try {
+            while (request.grant == null) {
+                grantHead();
+                if (request.grant == null) {
+                    wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queue.remove(request);
+            if (request.grant != null) {
+                release(request.grant);
+            } else {
+                // the next request may fit now
+                notifyAll();
+            }
+            throw new InterruptedIOException("Interrupted while waiting for sort resources");
+        }
+        return request.grant;
+    }
+
+    /**
+     * Grants the requests at the head of the queue as long as their minimum
+     * amounts are available.
+     */
+    private void grantHead() {
+        boolean granted = false;
+        Iterator<Request> iter = queue.iterator();
+        while (iter.hasNext()) {
+            Request head = iter.next();
+            int minValues = (int)Math.min(maxValues, Math.max(1, head.values / MIN_VALUES_DIVISOR));
+            int minFiles = Math.min(maxOpenFiles, Math.min(head.files, MIN_FILES));
+            if (availableValues < minValues || availableFiles < minFiles) {
+                break;
+            }
+            // an equal share of what is available for each waiting request
+            int waiting = queue.size();
+            int values = (int)Math.min(head.values, Math.max(minValues, availableValues / waiting));
+            int files = Math.min(head.files, Math.max(minFiles, availableFiles / waiting));
+            availableValues -= values;
+            availableFiles -= files;
+            head.grant = new Grant(values, files);
+            iter.remove();
+            granted = true;
+        }
+        if (granted) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns the granted memory and open files. Releasing a grant more than
+     * once has no effect.
+     */
+    synchronized void release(Grant grant) {
+        if (!grant.released) {
+            grant.released = true;
+            availableValues += grant.values;
+            availableFiles += grant.files;
+            grantHead();
+            notifyAll();
+        }
+    }
+
+    /**
+     * Counts a newly written chunk file against the temporary space quota.
+     * @throws IOException if the quota is exceeded, in which case the file is deleted.
+     */
+    void addTempFile(File file) throws IOException {
+        if (maxTempBytes == Long.MAX_VALUE) {
+            return;
+        }
+        long length = file.length();
+        synchronized (tempFiles) {
+            if (tempBytes + length > maxTempBytes) {
+                pruneTempFiles();
+            }
+            if (tempBytes + length > maxTempBytes) {
+                file.delete();
+                throw new IOException("Temporary space quota of " + maxTempBytes + " bytes exceeded");
+            }
+            tempFiles.put(file, length);
+            tempBytes += length;
+        }
+    }
+
+    /**
+     * Forgets the chunk files that have been deleted since they were added.
+     */
+    private void pruneTempFiles() {
+        Iterator<Map.Entry<File,Long>> iter = tempFiles.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<File,Long> entry = iter.next();
+            if (!entry.getKey().exists()) {
+                tempBytes -= entry.getValue();
+                iter.remove();
+            }
+        }
+    }
+
+}
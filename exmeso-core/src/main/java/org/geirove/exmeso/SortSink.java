@@ -0,0 +1,135 @@
+package org.geirove.exmeso;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A sink that many producer threads can add values to concurrently. Each
+ * producer thread collects values in a chunk buffer of its own, and sorts
+ * and writes the chunk to a chunk file on its own thread when the buffer
+ * holds chunkSize values, so producers do not wait for each other. When all
+ * producers are done, finish() merges the chunk files and the values that
+ * are still buffered. Note that up to chunkSize values are buffered per
+ * producer thread, and that the serializer must be thread-safe, since chunk
+ * files are written by several threads at the same time.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values to sort.
+ */
+public class SortSink<T> {
+
+    private final ExternalMergeSort<T> sort;
+    private final int chunkSize;
+    private final ThreadLocal<Buffer<T>> buffers;
+    private final List<Buffer<T>> allBuffers = Collections.synchronizedList(new ArrayList<Buffer<T>>());
+    private final List<File> sortedChunks = Collections.synchronizedList(new ArrayList<File>());
+    private volatile boolean finished;
+
+    SortSink(ExternalMergeSort<T> sort, int chunkSize) {
+        this.sort = sort;
+        this.chunkSize = chunkSize;
+        this.buffers = ThreadLocal.withInitial(() -> {
+            Buffer<T> buffer = new Buffer<T>();
+            allBuffers.add(buffer);
+            return buffer;
+        });
+    }
+
+    /**
+     * The values added by one producer thread. The lock of the buffer is
+     * only contended when finish() collects the buffered values.
+     */
+    private static class Buffer<T> {
+
+        private List<T> values = new ArrayList<T>();
+
+    }
+
+    /**
+     * Adds a value to the sink. May be called by any number of threads.
+     * @param value The value to add.
+     * @throws IOException if writing a chunk file fails. The value is still
+     * added, and the chunk is written again on the next add.
+     * @throws IllegalStateException if the sink has been finished.
+     */
+    public void add(T value) throws IOException {
+        Buffer<T> buffer = buffers.get();
+        synchronized (buffer) {
+            checkNotFinished();
+            append(buffer, value);
+        }
+    }
+
+    /**
+     * Adds the values to the sink. May be called by any number of threads.
+     * @param values The values to add.
+     * @throws IOException if writing a chunk file fails. The values up to
+     * and including the one that filled the chunk are still added.
+     * @throws IllegalStateException if the sink has been finished.
+     */
+    public void addAll(Iterable<? extends T> values) throws IOException {
+        Buffer<T> buffer = buffers.get();
+        synchronized (buffer) {
+            checkNotFinished();
+            for (T value : values) {
+                append(buffer, value);
+            }
+        }
+    }
+
+    private void checkNotFinished() {
+        if (finished) {
+            throw new IllegalStateException("The sink has been finished");
+        }
+    }
+
+    private void append(Buffer<T> buffer, T value) throws IOException {
+        buffer.values.add(value);
+        if (buffer.values.size() >= chunkSize) {
+            // the values stay buffered if the chunk cannot be written, so
+            // that none of them are lost, and the write is retried on the
+            // next add
+            sortedChunks.add(sort.writeInternalSortedChunk(buffer.values));
+            buffer.values = new ArrayList<T>();
+        }
+    }
+
+    /**
+     * Merges all the values that have been added. Values that are added
+     * concurrently with this call may or may not be included, so call it once
+     * all producers are done. Close the returned iterator to remove the chunk
+     * files.
+     * @return an iterator over the sorted values.
+     * @throws IOException if something fails when doing I/O.
+     * @throws IllegalStateException if the sink has already been finished.
+     */
+    public CloseableIterator<T> finish() throws IOException {
+        synchronized (this) {
+            checkNotFinished();
+            finished = true;
+        }
+        List<List<T>> buffered = new ArrayList<List<T>>();
+        synchronized (allBuffers) {
+            for (Buffer<T> buffer : allBuffers) {
+                // waits for a chunk that is being written by the producer
+                synchronized (buffer) {
+                    if (!buffer.values.isEmpty()) {
+                        buffered.add(buffer.values);
+                    }
+                    // the producer threads may hold on to their buffers
+                    buffer.values = Collections.emptyList();
+                }
+            }
+        }
+        List<File> files;
+        synchronized (sortedChunks) {
+            files = new ArrayList<File>(sortedChunks);
+        }
+        return sort.mergeSinkChunks(files, buffered);
+    }
+
+}
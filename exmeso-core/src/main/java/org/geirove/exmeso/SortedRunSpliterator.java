@@ -0,0 +1,234 @@
+package org.geirove.exmeso;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.geirove.exmeso.ExternalMergeSort.Chunk;
+import org.geirove.exmeso.ExternalMergeSort.ChunkIterator;
+
+/**
+ * A spliterator over the merged result of a set of sorted run files and an
+ * in-memory sorted run. The spliterator covers a key range, and splitting it
+ * divides the key range at the median of the block index keys of the runs,
+ * so that each part can be merged independently, and in parallel, from the
+ * runs themselves.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of values in the runs.
+ */
+class SortedRunSpliterator<T> implements Spliterator<T> {
+
+    /**
+     * The runs shared by all spliterators split from the same root. Closing
+     * it closes all merges that are still open and removes the run files.
+     */
+    static class Runs<T> implements Closeable {
+
+        private final List<RunFile<T>> runFiles;
+        private final List<T> residual;
+        private final Comparator<T> comparator;
+        private final boolean distinct;
+        private final boolean cleanup;
+        private final int sampleSize;
+        private final List<Closeable> open = Collections.synchronizedList(new ArrayList<Closeable>());
+
+        Runs(List<RunFile<T>> runFiles, List<T> residual, Comparator<T> comparator, boolean distinct, boolean cleanup, int sampleSize) {
+            this.runFiles = runFiles;
+            this.residual = residual;
+            this.comparator = comparator;
+            this.distinct = distinct;
+            this.cleanup = cleanup;
+            this.sampleSize = sampleSize;
+        }
+
+        SortedRunSpliterator<T> spliterator() {
+            return new SortedRunSpliterator<T>(this, null, null);
+        }
+
+        @Override
+        public void close() throws IOException {
+            IOException ex = null;
+            synchronized (open) {
+                for (Closeable c : open) {
+                    try {
+                        c.close();
+                    } catch (IOException e) {
+                        ex = e;
+                    }
+                }
+                open.clear();
+            }
+            if (cleanup) {
+                for (RunFile<T> runFile : runFiles) {
+                    runFile.getFile().delete();
+                }
+            }
+            if (ex != null) {
+                throw ex;
+            }
+        }
+
+    }
+
+    private final Runs<T> runs;
+    private T from;
+    private final T to;
+
+    private CloseableIterator<T> iter;
+
+    private SortedRunSpliterator(Runs<T> runs, T from, T to) {
+        this.runs = runs;
+        this.from = from;
+        this.to = to;
+    }
+
+    private boolean inRange(T value) {
+        return (from == null || runs.comparator.compare(value, from) >= 0)
+                && (to == null || runs.comparator.compare(value, to) < 0);
+    }
+
+    private int lowerBound(List<T> sorted, T key) {
+        if (key == null) {
+            return sorted.size();
+        }
+        int low = 0;
+        int high = sorted.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (runs.comparator.compare(sorted.get(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private List<T> residualRange() {
+        int start = from == null ? 0 : lowerBound(runs.residual, from);
+        int end = lowerBound(runs.residual, to);
+        return runs.residual.subList(start, Math.max(start, end));
+    }
+
+    private CloseableIterator<T> open() throws IOException {
+        List<Chunk<T>> chunks = new ArrayList<Chunk<T>>(runs.runFiles.size() + 1);
+        try {
+            for (RunFile<T> runFile : runs.runFiles) {
+                addChunk(chunks, new ChunkIterator<T>(runFile.range(from, to), runs.comparator));
+            }
+        } catch (IOException e) {
+            for (Chunk<T> chunk : chunks) {
+                chunk.close();
+            }
+            throw e;
+        }
+        addChunk(chunks, new ChunkIterator<T>(residualRange().iterator(), runs.comparator));
+        CloseableIterator<T> result;
+        if (chunks.size() == 1) {
+            result = chunks.get(0);
+        } else {
+            result = Chunk.merge(chunks, runs.comparator, runs.distinct);
+        }
+        runs.open.add(result);
+        return result;
+    }
+
+    private void addChunk(List<Chunk<T>> chunks, Chunk<T> chunk) throws IOException {
+        // empty chunks have no head value to order them by
+        if (chunk.hasNext()) {
+            chunks.add(chunk);
+        } else {
+            chunk.close();
+        }
+    }
+
+    private void close() {
+        runs.open.remove(iter);
+        try {
+            iter.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        try {
+            if (iter == null) {
+                iter = open();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (iter.hasNext()) {
+            action.accept(iter.next());
+            return true;
+        }
+        close();
+        return false;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        if (iter != null) {
+            return null;
+        }
+        List<T> candidates = new ArrayList<T>();
+        for (RunFile<T> runFile : runs.runFiles) {
+            for (RunFile.Block<T> block : runFile.getBlocks()) {
+                addCandidate(candidates, block.getFirstValue());
+            }
+        }
+        List<T> residual = residualRange();
+        for (int i=runs.sampleSize; i < residual.size(); i += runs.sampleSize) {
+            addCandidate(candidates, residual.get(i));
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        Collections.sort(candidates, runs.comparator);
+        T split = candidates.get(candidates.size() / 2);
+        SortedRunSpliterator<T> prefix = new SortedRunSpliterator<T>(runs, from, split);
+        this.from = split;
+        return prefix;
+    }
+
+    private void addCandidate(List<T> candidates, T value) {
+        // the split key must leave a non-empty range on both sides
+        if (inRange(value) && (from == null || runs.comparator.compare(value, from) > 0)) {
+            candidates.add(value);
+        }
+    }
+
+    @Override
+    public long estimateSize() {
+        long size = residualRange().size();
+        for (RunFile<T> runFile : runs.runFiles) {
+            for (RunFile.Block<T> block : runFile.getBlocks()) {
+                if (inRange(block.getFirstValue())) {
+                    size += block.getRecordCount();
+                }
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SORTED | NONNULL | (runs.distinct ? DISTINCT : 0);
+    }
+
+    @Override
+    public Comparator<? super T> getComparator() {
+        return runs.comparator;
+    }
+
+}
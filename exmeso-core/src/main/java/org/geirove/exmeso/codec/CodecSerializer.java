@@ -0,0 +1,132 @@
+package org.geirove.exmeso.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.geirove.exmeso.ExternalMergeSort;
+
+/**
+ * Serializer that writes records with a RecordCodec. It needs no libraries
+ * beyond exmeso-core, and records are reused when merging with object reuse
+ * enabled if the codec reads into the object it is given.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of records.
+ */
+public class CodecSerializer<T> implements ExternalMergeSort.BatchSerializer<T>, ExternalMergeSort.ReusingSerializer<T> {
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final RecordCodec<T> codec;
+    private final int bufferSize;
+
+    public CodecSerializer(RecordCodec<T> codec) {
+        this(codec, DEFAULT_BUFFER_SIZE);
+    }
+
+    public CodecSerializer(RecordCodec<T> codec, int bufferSize) {
+        this.codec = codec;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void writeValues(Iterator<T> values, OutputStream out) throws IOException {
+        RecordOutput output = new RecordOutput(out, bufferSize);
+        while (values.hasNext()) {
+            codec.write(values.next(), output);
+        }
+        output.flush();
+    }
+
+    @Override
+    public Iterator<T> readValues(InputStream input) throws IOException {
+        return new CodecIterator<T>(codec, new RecordInput(input, bufferSize));
+    }
+
+    @Override
+    public BatchReader<T> createReader(InputStream input) throws IOException {
+        final RecordInput in = new RecordInput(input, bufferSize);
+        return new BatchReader<T>() {
+            @Override
+            public int readBatch(Object[] dst) throws IOException {
+                int n = 0;
+                while (n < dst.length && in.hasMore()) {
+                    dst[n++] = codec.read(in, null);
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public BatchWriter<T> createWriter(OutputStream out) throws IOException {
+        final RecordOutput output = new RecordOutput(out, bufferSize);
+        return new BatchWriter<T>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void writeBatch(Object[] src, int n) throws IOException {
+                for (int i=0; i < n; i++) {
+                    codec.write((T)src[i], output);
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                output.flush();
+            }
+        };
+    }
+
+    @Override
+    public ValueReader<T> createValueReader(InputStream input) throws IOException {
+        final RecordInput in = new RecordInput(input, bufferSize);
+        return new ValueReader<T>() {
+            @Override
+            public T readInto(T reuse) throws IOException {
+                return in.hasMore() ? codec.read(in, reuse) : null;
+            }
+        };
+    }
+
+    private static class CodecIterator<T> implements Iterator<T> {
+
+        private final RecordCodec<T> codec;
+        private final RecordInput in;
+
+        private CodecIterator(RecordCodec<T> codec, RecordInput in) {
+            this.codec = codec;
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return in.hasMore();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            try {
+                return codec.read(in, null);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.geirove.exmeso.codec;
+
+import java.io.IOException;
+
+/**
+ * Codecs for values of the basic types.
+ *
+ * @author grove@geirove.org
+ */
+public final class Codecs {
+
+    private Codecs() {
+    }
+
+    /**
+     * Integers as variable length numbers.
+     */
+    public static final RecordCodec<Integer> INTEGER = new RecordCodec<Integer>() {
+        @Override
+        public void write(Integer value, RecordOutput out) throws IOException {
+            out.writeVarInt(value);
+        }
+        @Override
+        public Integer read(RecordInput in, Integer reuse) throws IOException {
+            return in.readVarInt();
+        }
+    };
+
+    /**
+     * Longs as variable length numbers.
+     */
+    public static final RecordCodec<Long> LONG = new RecordCodec<Long>() {
+        @Override
+        public void write(Long value, RecordOutput out) throws IOException {
+            out.writeVarLong(value);
+        }
+        @Override
+        public Long read(RecordInput in, Long reuse) throws IOException {
+            return in.readVarLong();
+        }
+    };
+
+    public static final RecordCodec<Double> DOUBLE = new RecordCodec<Double>() {
+        @Override
+        public void write(Double value, RecordOutput out) throws IOException {
+            out.writeDouble(value);
+        }
+        @Override
+        public Double read(RecordInput in, Double reuse) throws IOException {
+            return in.readDouble();
+        }
+    };
+
+    public static final RecordCodec<String> STRING = new RecordCodec<String>() {
+        @Override
+        public void write(String value, RecordOutput out) throws IOException {
+            out.writeString(value);
+        }
+        @Override
+        public String read(RecordInput in, String reuse) throws IOException {
+            return in.readString();
+        }
+    };
+
+    public static final RecordCodec<byte[]> BYTES = new RecordCodec<byte[]>() {
+        @Override
+        public void write(byte[] value, RecordOutput out) throws IOException {
+            out.writeBytes(value);
+        }
+        @Override
+        public byte[] read(RecordInput in, byte[] reuse) throws IOException {
+            return in.readBytes();
+        }
+    };
+
+}
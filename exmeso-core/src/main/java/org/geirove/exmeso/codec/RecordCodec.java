@@ -0,0 +1,28 @@
+package org.geirove.exmeso.codec;
+
+import java.io.IOException;
+
+/**
+ * Writes and reads the fields of a record type with the primitives of
+ * RecordOutput and RecordInput. A codec is written by hand for each record
+ * type, which avoids the reflection of general purpose serializers. The fields
+ * must be read in the same order as they were written.
+ *
+ * @author grove@geirove.org
+ *
+ * @param <T> The type of records.
+ */
+public interface RecordCodec<T> {
+
+    void write(T value, RecordOutput out) throws IOException;
+
+    /**
+     * Reads the next record.
+     * @param in The input to read from.
+     * @param reuse An object that may be reused for the result, or null.
+     * @return the record read, which is either 'reuse' or a new object.
+     * @throws IOException if something fails when doing I/O.
+     */
+    T read(RecordInput in, T reuse) throws IOException;
+
+}
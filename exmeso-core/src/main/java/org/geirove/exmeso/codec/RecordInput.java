@@ -0,0 +1,129 @@
+package org.geirove.exmeso.codec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered binary input of the primitives written by RecordOutput.
+ *
+ * @author grove@geirove.org
+ */
+public final class RecordInput {
+
+    private final InputStream in;
+    private final ByteBuffer buffer;
+
+    public RecordInput(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = ByteBuffer.allocate(Math.max(16, bufferSize));
+        this.buffer.flip();
+    }
+
+    /**
+     * Makes at least n bytes available in the buffer, unless the input ends.
+     * @return false if the input ended before n bytes were available.
+     */
+    private boolean fill(int n) throws IOException {
+        if (buffer.remaining() >= n) {
+            return true;
+        }
+        buffer.compact();
+        try {
+            while (buffer.position() < n) {
+                int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    return false;
+                }
+                buffer.position(buffer.position() + read);
+            }
+            return true;
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    private void require(int n) throws IOException {
+        if (!fill(n)) {
+            throw new EOFException("Record input ended in the middle of a record");
+        }
+    }
+
+    /**
+     * Returns true if there is more input, i.e. if another record can be read.
+     */
+    public boolean hasMore() throws IOException {
+        return fill(1);
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public byte readByte() throws IOException {
+        require(1);
+        return buffer.get();
+    }
+
+    public int readInt() throws IOException {
+        require(4);
+        return buffer.getInt();
+    }
+
+    public long readLong() throws IOException {
+        require(8);
+        return buffer.getLong();
+    }
+
+    public double readDouble() throws IOException {
+        require(8);
+        return buffer.getDouble();
+    }
+
+    public int readVarInt() throws IOException {
+        int value = (int)readUnsignedVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readVarLong() throws IOException {
+        long value = readUnsignedVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private long readUnsignedVarLong() throws IOException {
+        long result = 0;
+        for (int shift=0; shift < 64; shift += 7) {
+            byte b = readByte();
+            result |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    public String readString() throws IOException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    public byte[] readBytes() throws IOException {
+        long length = readUnsignedVarLong();
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Malformed byte array length: " + length);
+        }
+        byte[] result = new byte[(int)length];
+        int n = Math.min(result.length, buffer.remaining());
+        buffer.get(result, 0, n);
+        while (n < result.length) {
+            int read = in.read(result, n, result.length - n);
+            if (read < 0) {
+                throw new EOFException("Record input ended in the middle of a record");
+            }
+            n += read;
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,103 @@
+package org.geirove.exmeso.codec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered binary output of the primitives that records are encoded with.
+ * Fixed size numbers are written in big-endian order. Variable length numbers
+ * use seven bits per byte, and signed ones are zigzag encoded first, so that
+ * numbers close to zero take a single byte whatever their sign. Strings are
+ * written as UTF-8 and byte arrays as is, both preceded by their length.
+ *
+ * @author grove@geirove.org
+ */
+public final class RecordOutput {
+
+    private final OutputStream out;
+    private final ByteBuffer buffer;
+
+    public RecordOutput(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = ByteBuffer.allocate(Math.max(16, bufferSize));
+    }
+
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    public void writeBoolean(boolean value) throws IOException {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeByte(int value) throws IOException {
+        ensure(1);
+        buffer.put((byte)value);
+    }
+
+    public void writeInt(int value) throws IOException {
+        ensure(4);
+        buffer.putInt(value);
+    }
+
+    public void writeLong(long value) throws IOException {
+        ensure(8);
+        buffer.putLong(value);
+    }
+
+    public void writeDouble(double value) throws IOException {
+        ensure(8);
+        buffer.putDouble(value);
+    }
+
+    public void writeVarInt(int value) throws IOException {
+        writeUnsignedVarLong(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+    }
+
+    public void writeVarLong(long value) throws IOException {
+        writeUnsignedVarLong((value << 1) ^ (value >> 63));
+    }
+
+    private void writeUnsignedVarLong(long value) throws IOException {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    public void writeString(String value) throws IOException {
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeBytes(byte[] value) throws IOException {
+        writeUnsignedVarLong(value.length);
+        if (value.length <= buffer.capacity()) {
+            ensure(value.length);
+            buffer.put(value);
+        } else {
+            flushBuffer();
+            out.write(value);
+        }
+    }
+
+    /**
+     * Writes the buffered data to the output stream and flushes it. The
+     * output stream is not closed.
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+}
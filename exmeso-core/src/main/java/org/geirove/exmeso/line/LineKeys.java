@@ -0,0 +1,228 @@
+package org.geirove.exmeso.line;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.function.Function;
+
+/**
+ * Sort key extractors that work directly on the bytes of a line, so that
+ * lines can be sorted by a field without being parsed into objects. The
+ * extracted keys are byte arrays that can be ordered with BYTE_ORDER, which
+ * for UTF-8 text is the order of the code points, or converted to numbers
+ * with longValue(...) and doubleValue(...). A line without the field has an
+ * empty key.
+ *
+ * @author grove@geirove.org
+ */
+public final class LineKeys {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Orders byte arrays lexicographically by their unsigned bytes.
+     */
+    public static final Comparator<byte[]> BYTE_ORDER = Arrays::compareUnsigned;
+
+    private LineKeys() {
+    }
+
+    /**
+     * @return a key extractor that uses the whole line as the key.
+     */
+    public static Function<byte[],byte[]> line() {
+        return line -> line;
+    }
+
+    /**
+     * @param index The zero based index of the column.
+     * @param delimiter The byte that separates columns, e.g. '\t' or ','.
+     * @return a key extractor that uses a column of a delimited line as the
+     * key. Quoting is not taken into account.
+     */
+    public static Function<byte[],byte[]> column(final int index, final byte delimiter) {
+        if (index < 0) {
+            throw new IllegalArgumentException("Column index cannot be negative: " + index);
+        }
+        return line -> {
+            int start = 0;
+            for (int column=0; column < index; column++) {
+                int next = indexOf(line, delimiter, start);
+                if (next < 0) {
+                    return EMPTY;
+                }
+                start = next + 1;
+            }
+            int end = indexOf(line, delimiter, start);
+            return Arrays.copyOfRange(line, start, end < 0 ? line.length : end);
+        };
+    }
+
+    private static int indexOf(byte[] line, byte b, int from) {
+        for (int i=from; i < line.length; i++) {
+            if (line[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name The name of a top-level field of a JSON object.
+     * @return a key extractor that uses the value of the field of a line
+     * holding a JSON object as the key. String values are the bytes between
+     * the quotes, with escape sequences left as they are, and other values
+     * are their literal text. The field name is compared with the name in the
+     * line as written, so names containing escapes will not match.
+     */
+    public static Function<byte[],byte[]> jsonField(String name) {
+        final byte[] fieldName = name.getBytes(StandardCharsets.UTF_8);
+        return line -> {
+            int len = line.length;
+            int i = skipWhitespace(line, 0);
+            if (i >= len || line[i] != '{') {
+                return EMPTY;
+            }
+            i++;
+            while (true) {
+                i = skipWhitespace(line, i);
+                if (i >= len || line[i] != '"') {
+                    return EMPTY;
+                }
+                int nameStart = i + 1;
+                int nameEnd = stringEnd(line, i);
+                if (nameEnd < 0) {
+                    return EMPTY;
+                }
+                i = skipWhitespace(line, nameEnd + 1);
+                if (i >= len || line[i] != ':') {
+                    return EMPTY;
+                }
+                int valueStart = skipWhitespace(line, i + 1);
+                int valueEnd = valueEnd(line, valueStart);
+                if (Arrays.equals(line, nameStart, nameEnd, fieldName, 0, fieldName.length)) {
+                    if (valueStart < len && line[valueStart] == '"') {
+                        return Arrays.copyOfRange(line, valueStart + 1, Math.max(valueStart + 1, valueEnd - 1));
+                    }
+                    return Arrays.copyOfRange(line, valueStart, valueEnd);
+                }
+                i = skipWhitespace(line, valueEnd);
+                if (i >= len || line[i] != ',') {
+                    return EMPTY;
+                }
+                i++;
+            }
+        };
+    }
+
+    private static int skipWhitespace(byte[] line, int i) {
+        while (i < line.length && (line[i] == ' ' || line[i] == '\t' || line[i] == '\r' || line[i] == '\n')) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return the index of the quote that ends the string starting at the
+     * given quote, or -1 if the string is not terminated.
+     */
+    private static int stringEnd(byte[] line, int quote) {
+        for (int i=quote + 1; i < line.length; i++) {
+            if (line[i] == '\\') {
+                i++;
+            } else if (line[i] == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index after the value starting at the given index.
+     */
+    private static int valueEnd(byte[] line, int i) {
+        int len = line.length;
+        if (i >= len) {
+            return len;
+        }
+        if (line[i] == '"') {
+            int end = stringEnd(line, i);
+            return end < 0 ? len : end + 1;
+        }
+        if (line[i] == '{' || line[i] == '[') {
+            int depth = 0;
+            for (; i < len; i++) {
+                byte b = line[i];
+                if (b == '"') {
+                    int end = stringEnd(line, i);
+                    if (end < 0) {
+                        return len;
+                    }
+                    i = end;
+                } else if (b == '{' || b == '[') {
+                    depth++;
+                } else if ((b == '}' || b == ']') && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            return len;
+        }
+        while (i < len && line[i] != ',' && line[i] != '}' && line[i] != ']'
+                && line[i] != ' ' && line[i] != '\t' && line[i] != '\r' && line[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @param key The key extractor to convert the key of.
+     * @return a key extractor that parses the key as a decimal integer. Keys
+     * that are not integers, including empty keys and integers outside the
+     * range of a long, become Long.MIN_VALUE, so that such lines sort first.
+     */
+    public static Function<byte[],Long> longValue(final Function<byte[],byte[]> key) {
+        return line -> {
+            byte[] bytes = key.apply(line);
+            int i = 0;
+            boolean negative = bytes.length > 0 && bytes[0] == '-';
+            if (negative) {
+                i++;
+            }
+            if (i >= bytes.length) {
+                return Long.MIN_VALUE;
+            }
+            long result = 0;
+            try {
+                for (; i < bytes.length; i++) {
+                    int digit = bytes[i] - '0';
+                    if (digit < 0 || digit > 9) {
+                        return Long.MIN_VALUE;
+                    }
+                    // accumulate negatively, which also covers Long.MIN_VALUE
+                    result = Math.subtractExact(Math.multiplyExact(result, 10), digit);
+                }
+                return negative ? result : Math.negateExact(result);
+            } catch (ArithmeticException e) {
+                return Long.MIN_VALUE;
+            }
+        };
+    }
+
+    /**
+     * @param key The key extractor to convert the key of.
+     * @return a key extractor that parses the key as a decimal number. Keys
+     * that are not numbers, including empty keys, become
+     * Double.NEGATIVE_INFINITY, so that such lines sort first.
+     */
+    public static Function<byte[],Double> doubleValue(final Function<byte[],byte[]> key) {
+        return line -> {
+            byte[] bytes = key.apply(line);
+            try {
+                return Double.valueOf(new String(bytes, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException e) {
+                return Double.NEGATIVE_INFINITY;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.geirove.exmeso.line;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.geirove.exmeso.ExternalMergeSort;
+
+/**
+ * Serializer for lines of text kept as raw bytes, without the terminating
+ * newline. Lines are written newline terminated, so chunk files and the
+ * sorted output have the same format as the input, and the serializer can
+ * read the input of a sort as well as write its result. No charset decoding
+ * takes place, and a carriage return before the newline stays part of the
+ * line.
+ *
+ * @author grove@geirove.org
+ */
+public class LineSerializer implements ExternalMergeSort.BatchSerializer<byte[]> {
+
+    private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    private final int bufferSize;
+
+    public LineSerializer() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public LineSerializer(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    public void writeValues(Iterator<byte[]> values, OutputStream out) throws IOException {
+        OutputStream output = new BufferedOutputStream(out, bufferSize);
+        while (values.hasNext()) {
+            writeLine(values.next(), output);
+        }
+        output.flush();
+    }
+
+    private static void writeLine(byte[] line, OutputStream output) throws IOException {
+        output.write(line);
+        output.write('\n');
+    }
+
+    @Override
+    public Iterator<byte[]> readValues(InputStream input) throws IOException {
+        return new LineIterator(new LineReader(input, bufferSize));
+    }
+
+    @Override
+    public BatchReader<byte[]> createReader(InputStream input) throws IOException {
+        final LineReader in = new LineReader(input, bufferSize);
+        return new BatchReader<byte[]>() {
+            @Override
+            public int readBatch(Object[] dst) throws IOException {
+                int n = 0;
+                byte[] line;
+                while (n < dst.length && (line = in.readLine()) != null) {
+                    dst[n++] = line;
+                }
+                return n;
+            }
+        };
+    }
+
+    @Override
+    public BatchWriter<byte[]> createWriter(OutputStream out) throws IOException {
+        final OutputStream output = new BufferedOutputStream(out, bufferSize);
+        return new BatchWriter<byte[]>() {
+            @Override
+            public void writeBatch(Object[] src, int n) throws IOException {
+                for (int i=0; i < n; i++) {
+                    writeLine((byte[])src[i], output);
+                }
+            }
+            @Override
+            public void close() throws IOException {
+                output.flush();
+            }
+        };
+    }
+
+    /**
+     * Reads newline terminated lines from a stream. The buffer grows to hold
+     * the longest line.
+     */
+    private static class LineReader {
+
+        private final InputStream in;
+        private byte[] buffer;
+        private int pos;
+        private int limit;
+        private boolean eof;
+
+        private LineReader(InputStream in, int bufferSize) {
+            this.in = in;
+            this.buffer = new byte[bufferSize];
+        }
+
+        /**
+         * @return the next line without its newline, or null if there are no
+         * more lines. The last line need not be newline terminated.
+         */
+        private byte[] readLine() throws IOException {
+            int scan = pos;
+            while (true) {
+                for (; scan < limit; scan++) {
+                    if (buffer[scan] == '\n') {
+                        byte[] line = Arrays.copyOfRange(buffer, pos, scan);
+                        pos = scan + 1;
+                        return line;
+                    }
+                }
+                if (eof) {
+                    if (pos == limit) {
+                        return null;
+                    }
+                    byte[] line = Arrays.copyOfRange(buffer, pos, limit);
+                    pos = limit;
+                    return line;
+                }
+                if (pos > 0) {
+                    // move the partial line to the start of the buffer
+                    System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                    limit -= pos;
+                    scan -= pos;
+                    pos = 0;
+                } else if (limit == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int n = in.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    limit += n;
+                }
+            }
+        }
+
+    }
+
+    private static class LineIterator implements Iterator<byte[]> {
+
+        private final LineReader in;
+        private byte[] next;
+
+        private LineIterator(LineReader in) {
+            this.in = in;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = in.readLine();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] result = next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+}
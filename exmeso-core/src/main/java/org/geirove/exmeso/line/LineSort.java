@@ -0,0 +1,92 @@
+package org.geirove.exmeso.line;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Comparator;
+import java.util.function.Function;
+
+import org.geirove.exmeso.ExternalMergeSort;
+
+/**
+ * Sorts newline-delimited text, e.g. NDJSON or TSV files, by a key taken from
+ * the bytes of each line. The lines stay raw bytes from the input, through the
+ * chunk files and to the output, and are never decoded or parsed into
+ * objects. Example:
+ *
+ * <pre>
+ * ExternalMergeSort&lt;byte[]&gt; sort = LineSort.newSorter(LineKeys.jsonField("id"))
+ *         .withChunkSize(100000)
+ *         .build();
+ * LineSort.sort(sort, new File("input.ndjson"), new File("sorted.ndjson"));
+ * </pre>
+ *
+ * @author grove@geirove.org
+ */
+public final class LineSort {
+
+    private LineSort() {
+    }
+
+    /**
+     * Creates a builder for a sorter of lines ordered by the unsigned bytes
+     * of the key. Lines with equal keys are all kept, unless the builder is
+     * configured with withDistinct(true), in which case only the first line
+     * with each key is kept. Chunks are sorted with the multikey quicksort
+     * of Builder.withBytesSortKey(...).
+     * @param keyExtractor Extracts the sort key from a line, see LineKeys.
+     * @return a new builder.
+     */
+    public static ExternalMergeSort.Builder<byte[]> newSorter(Function<byte[],byte[]> keyExtractor) {
+        return newSorter(keyExtractor, LineKeys.BYTE_ORDER).withBytesSortKey(keyExtractor);
+    }
+
+    /**
+     * Creates a builder for a sorter of lines ordered by the key.
+     * @param keyExtractor Extracts the sort key from a line, see LineKeys.
+     * @param keyComparator Compares the sort keys.
+     * @return a new builder.
+     */
+    public static <K> ExternalMergeSort.Builder<byte[]> newSorter(Function<byte[], ? extends K> keyExtractor, Comparator<? super K> keyComparator) {
+        return ExternalMergeSort.newSorter(new LineSerializer(), keyExtractor, keyComparator)
+                .withDistinct(false);
+    }
+
+    /**
+     * Sorts the lines of the input stream and writes them to the output
+     * stream. Neither stream is closed.
+     * @param sort A sorter created by newSorter(...).
+     * @param in The lines to sort.
+     * @param out The stream to write the sorted lines to.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public static void sort(ExternalMergeSort<byte[]> sort, InputStream in, OutputStream out) throws IOException {
+        LineSerializer serializer = new LineSerializer();
+        sort.mergeSortTo(serializer.readValues(in), serializer, out);
+    }
+
+    /**
+     * Sorts the lines of the input file and writes them to the output file.
+     * @param sort A sorter created by newSorter(...).
+     * @param input The file to sort.
+     * @param output The file to write the sorted lines to.
+     * @throws IOException if something fails when doing I/O.
+     */
+    public static void sort(ExternalMergeSort<byte[]> sort, File input, File output) throws IOException {
+        InputStream in = new FileInputStream(input);
+        try {
+            OutputStream out = new FileOutputStream(output);
+            try {
+                sort(sort, in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -1,12 +1,38 @@
 package org.geirove.exmeso;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.geirove.exmeso.ExternalMergeSort.Serializer;
 
@@ -14,12 +40,17 @@ public abstract class AbstractExternalMergeSortTest {
 
     private static class RandomIntIterator implements Iterator<Integer> {
 
-        private Random rand = new Random();
+        private Random rand;
         private int size;
         private int c;
 
         private RandomIntIterator(int size) {
+            this(size, new Random());
+        }
+
+        private RandomIntIterator(int size, Random rand) {
             this.size = size;
+            this.rand = rand;
         }
 
         @Override
@@ -39,6 +70,58 @@ public abstract class AbstractExternalMergeSortTest {
         }
     }
 
+    private static class FailingIterator<T> implements Iterator<T> {
+
+        private final Iterator<T> nested;
+        private int failAfter;
+
+        private FailingIterator(Iterator<T> nested, int failAfter) {
+            this.nested = nested;
+            this.failAfter = failAfter;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nested.hasNext();
+        }
+
+        @Override
+        public T next() {
+            if (failAfter-- == 0) {
+                throw new IllegalStateException("Simulated crash");
+            }
+            return nested.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Hides any BatchSerializer implementation so that the per-object
+     * Serializer methods are used.
+     */
+    private static class IteratorSerializer<T> implements Serializer<T> {
+
+        private final Serializer<T> nested;
+
+        private IteratorSerializer(Serializer<T> nested) {
+            this.nested = nested;
+        }
+
+        @Override
+        public void writeValues(Iterator<T> values, OutputStream out) throws IOException {
+            nested.writeValues(values, out);
+        }
+
+        @Override
+        public Iterator<T> readValues(InputStream input) throws IOException {
+            return nested.readValues(input);
+        }
+    }
+
     public abstract void testLargeIntegerSort() throws IOException;
 
     protected void performLargeIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
@@ -75,13 +158,869 @@ public abstract class AbstractExternalMergeSortTest {
         assertSorted(serializer, comparator, sort, new RandomIntIterator(size), size, distinct);
     }
 
+    protected void performIteratorIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        performMultiMergeIntegerSort(new IteratorSerializer<Integer>(serializer), comparator, distinct);
+        performPrimeIntegerSort(new IteratorSerializer<Integer>(serializer), comparator, distinct);
+    }
+
+    protected void performReuseIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(21)
+                .withMaxOpenFiles(7)
+                .withObjectReuse(true)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 9123;
+        assertSorted(serializer, comparator, sort, new RandomIntIterator(size), size, distinct);
+    }
+
+    protected void performSortKeyIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        final AtomicLong extracted = new AtomicLong();
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, (Integer i) -> {
+                    extracted.incrementAndGet();
+                    return i;
+                }, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(50)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 4000;
+        assertSorted(serializer, comparator, sort, new RandomIntIterator(size), size, distinct);
+        // once when sorting the chunk, and once when merging, plus the check
+        // of whether each chunk continues the run of the previous one
+        assertTrue("Too many keys extracted: " + extracted.get(), extracted.get() <= 2 * size + 2 * (size / 100));
+    }
+
+    protected void performResidualIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(3)
+                .withResidualSize(250)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 1234;
+        assertSorted(serializer, comparator, sort, new RandomIntIterator(size), size, distinct);
+    }
+
+    protected void performResumeIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        File tempDirectory = File.createTempFile("exmeso-resume-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        try {
+            ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(10)
+                    .withMaxOpenFiles(3)
+                    .withDistinct(distinct)
+                    .withCleanup(true)
+                    .build();
+            int size = 1001;
+            long seed = System.currentTimeMillis();
+            File manifestFile = File.createTempFile("exmeso-manifest-", "", tempDirectory);
+            try {
+                sort.mergeSort(new FailingIterator<Integer>(new RandomIntIterator(size, new Random(seed)), 777), SortManifest.create(manifestFile));
+                fail("Simulated crash did not happen");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            SortManifest manifest = SortManifest.load(manifestFile);
+            assertEquals(770, manifest.getInputCount());
+            assertTrue("No runs in manifest", !manifest.getRuns().isEmpty());
+            // the output of a partial merge that was in progress
+            File partial = File.createTempFile("exmeso-merged-", "", tempDirectory);
+            assertSorted(serializer, comparator, sort.resume(new RandomIntIterator(size, new Random(seed)), manifest), size, distinct);
+            assertFalse("Partial merge not deleted", partial.exists());
+            assertFalse("Manifest not deleted", manifestFile.exists());
+            assertEquals(0, tempDirectory.list().length);
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    protected void performRunFileIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withBlockSize(64)
+                .withDistinct(distinct)
+                .withCleanup(true)
+                .build();
+        int size = 5000;
+        File file = File.createTempFile("exmeso-run-", "");
+        try {
+            RunFile<Integer> written = sort.mergeSortToRunFile(new RandomIntIterator(size), file);
+            RunFile<Integer> run = RunFile.open(file, serializer, comparator);
+            run.verify();
+            assertEquals(written.getRecordCount(), run.getRecordCount());
+            assertEquals(written.getMax(), run.getMax());
+            assertEquals((size + 63) / 64, run.getBlocks().size());
+            if (!distinct) {
+                assertEquals(size, run.getRecordCount());
+            }
+            assertSorted(serializer, comparator, run.iterator(), (int)run.getRecordCount(), distinct);
+
+            // seek to the first value of a block in the middle and then into the block itself
+            Integer key = run.getBlocks().get(run.getBlocks().size() / 2).getFirstValue();
+            int count = 0;
+            CloseableIterator<Integer> iter = run.seek(key);
+            try {
+                assertEquals(key, iter.next());
+                count++;
+                while (iter.hasNext()) {
+                    assertTrue(comparator.compare(iter.next(), key) >= 0);
+                    count++;
+                }
+            } finally {
+                iter.close();
+            }
+            assertEquals(run.getRecordCount() - (run.getBlocks().size() / 2) * 64, count);
+
+            iter = run.range(run.getMin(), key);
+            try {
+                count = 0;
+                while (iter.hasNext()) {
+                    assertTrue(comparator.compare(iter.next(), key) < 0);
+                    count++;
+                }
+            } finally {
+                iter.close();
+            }
+            assertEquals((run.getBlocks().size() / 2) * 64, count);
+        } finally {
+            file.delete();
+        }
+    }
+
+    protected void performAsyncIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException, InterruptedException, ExecutionException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 2345;
+        assertSorted(serializer, comparator, sort.mergeSortAsync(new RandomIntIterator(size)).get(), size, distinct);
+
+        final List<Integer> published = new ArrayList<Integer>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        Flow.Publisher<Integer> publisher = sort.mergeSortPublisher(new RandomIntIterator(size));
+        publisher.subscribe(new Flow.Subscriber<Integer>() {
+            private Flow.Subscription subscription;
+            private int outstanding;
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                this.outstanding = 7;
+                subscription.request(outstanding);
+            }
+            @Override
+            public void onNext(Integer item) {
+                published.add(item);
+                if (--outstanding == 0) {
+                    outstanding = 7;
+                    subscription.request(outstanding);
+                }
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                errors.add(throwable);
+                completed.countDown();
+            }
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+        assertTrue("Publisher did not complete", completed.await(60, TimeUnit.SECONDS));
+        assertTrue("Publisher failed: " + errors, errors.isEmpty());
+        assertSorted(serializer, comparator, published, size, distinct);
+
+        // a second subscriber is rejected without touching the consumed input
+        final List<String> signals = new ArrayList<String>();
+        publisher.subscribe(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                signals.add("onSubscribe");
+                subscription.request(10);
+            }
+            @Override
+            public void onNext(Integer item) {
+                signals.add("onNext");
+            }
+            @Override
+            public void onError(Throwable throwable) {
+                signals.add("onError " + throwable.getClass().getSimpleName());
+            }
+            @Override
+            public void onComplete() {
+                signals.add("onComplete");
+            }
+        });
+        assertEquals(Arrays.asList("onSubscribe", "onError IllegalStateException"), signals);
+    }
+
+    protected void performStreamIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(7)
+                .withBlockSize(16)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 4321;
+        List<Integer> collected;
+        try (Stream<Integer> sorted = new Random().ints(size).boxed().collect(sort.collector())) {
+            collected = sorted.collect(Collectors.toList());
+        }
+        assertSorted(serializer, comparator, collected, size, distinct);
+
+        // the segments of a parallel stream write their runs concurrently, which
+        // the serializers of all the modules support
+        try (Stream<Integer> sorted = new Random().ints(size).boxed().parallel().collect(sort.collector())) {
+            collected = sorted.parallel().collect(Collectors.toList());
+        }
+        assertSorted(serializer, comparator, collected, size, distinct);
+
+        try (Stream<Integer> sorted = sort.sorted(new Random().ints(size).boxed().parallel())) {
+            collected = sorted.map(i -> i).collect(Collectors.toList());
+        }
+        assertSorted(serializer, comparator, collected, size, distinct);
+    }
+
+    protected void performOutputIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withBatchSize(32)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 3456;
+        // write both through batches and through the plain serializer interface
+        List<Serializer<Integer>> outSerializers = new ArrayList<Serializer<Integer>>();
+        outSerializers.add(serializer);
+        outSerializers.add(new IteratorSerializer<Integer>(serializer));
+        for (Serializer<Integer> outSerializer : outSerializers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            sort.mergeSortTo(new RandomIntIterator(size), outSerializer, out);
+            List<Integer> written = new ArrayList<Integer>();
+            Iterator<Integer> iter = serializer.readValues(new ByteArrayInputStream(out.toByteArray()));
+            while (iter.hasNext()) {
+                written.add(iter.next());
+            }
+            assertSorted(serializer, comparator, written, size, distinct);
+        }
+
+        // an executor that rejects the merge leaves no chunk files behind
+        File tempDirectory = File.createTempFile("exmeso-output-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        try {
+            ExternalMergeSort<Integer> rejected = ExternalMergeSort.newSorter(serializer, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(100)
+                    .withMaxOpenFiles(5)
+                    .withDistinct(distinct)
+                    .withExecutor(executor)
+                    .withCleanup(true)
+                    .build();
+            try {
+                rejected.mergeSortTo(new RandomIntIterator(size), serializer, new ByteArrayOutputStream());
+                fail("Expected the executor to reject the merge");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            assertEquals(0, tempDirectory.listFiles().length);
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    protected void performPartitionIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        File tempDirectory = File.createTempFile("exmeso-partition-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        try {
+            ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(100)
+                    .withMaxOpenFiles(5)
+                    .withPartitions(8)
+                    .withDistinct(distinct)
+                    .withCleanup(true)
+                    .build();
+            int size = 5000;
+            Random rand = new Random();
+            List<Integer> random = new ArrayList<Integer>();
+            for (int i=0; i < size; i++) {
+                random.add(rand.nextInt(1000));
+            }
+            // each partition is appended to a single bucket file
+            CloseableIterator<Integer> iter = sort.mergeSort(random.iterator());
+            try {
+                assertTrue("Too many files: " + tempDirectory.list().length, tempDirectory.list().length <= 8);
+                assertEquals(sorted(random, comparator, distinct), toList(iter));
+            } finally {
+                iter.close();
+            }
+            assertEquals(0, tempDirectory.list().length);
+
+            // a sample that does not represent the rest of the input leaves some
+            // partitions too large to be sorted in memory
+            List<Integer> skewed = new ArrayList<Integer>();
+            for (int i=0; i < size; i++) {
+                skewed.add(i < 100 ? rand.nextInt(1000) - 500 : rand.nextInt(200));
+            }
+            iter = sort.mergeSort(skewed.iterator());
+            try {
+                assertEquals(sorted(skewed, comparator, distinct), toList(iter));
+            } finally {
+                iter.close();
+            }
+
+            // presorted input sends every value after the sample to the last
+            // partition, so the distribution is given up
+            List<Integer> ascending = new ArrayList<Integer>();
+            for (int i=0; i < size; i++) {
+                ascending.add(i / 2);
+            }
+            iter = sort.mergeSort(ascending.iterator());
+            try {
+                assertEquals(sorted(ascending, comparator, distinct), toList(iter));
+            } finally {
+                iter.close();
+            }
+            assertEquals(0, tempDirectory.list().length);
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    private static List<Integer> sorted(List<Integer> values, Comparator<Integer> comparator, boolean distinct) {
+        List<Integer> result = new ArrayList<Integer>(distinct ? new TreeSet<Integer>(values) : values);
+        Collections.sort(result, comparator);
+        return result;
+    }
+
+    private static List<Integer> toList(Iterator<Integer> iter) {
+        List<Integer> result = new ArrayList<Integer>();
+        while (iter.hasNext()) {
+            result.add(iter.next());
+        }
+        return result;
+    }
+
+    protected void performPresortedIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        File tempDirectory = File.createTempFile("exmeso-presorted-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        try {
+            ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(100)
+                    .withMaxOpenFiles(3)
+                    .withDistinct(distinct)
+                    .withCleanup(true)
+                    .build();
+            int size = 5000;
+            List<Integer> ascending = new ArrayList<Integer>();
+            for (int i=0; i < size; i++) {
+                ascending.add(i);
+            }
+            // sorted input is written as a single run, except for the last
+            // chunk, which is kept in memory
+            CloseableIterator<Integer> iter = sort.mergeSort(ascending.iterator());
+            File[] files = tempDirectory.listFiles();
+            assertEquals(1, files.length);
+            InputStream input = new FileInputStream(files[0]);
+            try {
+                int count = 0;
+                for (Iterator<Integer> values = serializer.readValues(input); values.hasNext(); values.next()) {
+                    count++;
+                }
+                assertEquals(size - 100, count);
+            } finally {
+                input.close();
+            }
+            assertSorted(serializer, comparator, iter, size, distinct);
+            assertEquals(0, tempDirectory.listFiles().length);
+
+            // each chunk of reversed input starts below where the previous one ended
+            List<Integer> descending = new ArrayList<Integer>(ascending);
+            Collections.reverse(descending);
+            List<File> chunks = sort.writeSortedChunks(descending.iterator());
+            assertEquals(size / 100, chunks.size());
+            assertSorted(serializer, comparator, sort.mergeSortedChunks(chunks), size, distinct);
+
+            // a few values out of place only break the run where they occur
+            List<Integer> nearlySorted = new ArrayList<Integer>(ascending);
+            Collections.swap(nearlySorted, 1000, 1050);
+            Collections.swap(nearlySorted, 2099, 2100);
+            Collections.swap(nearlySorted, 3000, 4500);
+            chunks = sort.writeSortedChunks(nearlySorted.iterator());
+            assertEquals(4, chunks.size());
+            assertSorted(serializer, comparator, sort.mergeSortedChunks(chunks), size, distinct);
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    protected void performHeapPressureIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException, InterruptedException {
+        // make sure that the live fraction of the heap is known
+        HeapMonitor monitor = HeapMonitor.getInstance();
+        long collections = monitor.getCollectionCount();
+        System.gc();
+        for (int i=0; i < 100 && monitor.getCollectionCount() == collections; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("No garbage collection seen", monitor.getCollectionCount() > collections);
+        assertTrue("No live heap after garbage collection", monitor.getLiveFraction() > 0);
+
+        int size = 3200;
+        // any live data puts the heap under pressure, so chunks are written
+        // as soon as they hold chunkSize/16 values
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(160)
+                .withMaxOpenFiles(1000)
+                .withHeapPressureLimit(Double.MIN_VALUE)
+                .withDistinct(distinct)
+                .withCleanup(true)
+                .build();
+        List<File> chunks = sort.writeSortedChunks(new RandomIntIterator(size));
+        assertTrue("Chunks were not written early: " + chunks.size(), chunks.size() > size / 20);
+        assertSorted(serializer, comparator, sort.mergeSortedChunks(chunks), size, distinct);
+        assertSorted(serializer, comparator, sort, new RandomIntIterator(size), size, distinct);
+
+        // no live data exceeds the whole heap, so chunks grow up to maxChunkSize
+        // for as long as there are garbage collections
+        sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(160)
+                .withMaxChunkSize(320)
+                .withMaxOpenFiles(1000)
+                .withHeapPressureLimit(2.0)
+                .withDistinct(distinct)
+                .withCleanup(true)
+                .build();
+        chunks = sort.writeSortedChunks(new RandomIntIterator(size));
+        assertTrue("Chunks did not grow: " + chunks.size(), chunks.size() >= size / 320 && chunks.size() <= size / 160);
+        assertSorted(serializer, comparator, sort.mergeSortedChunks(chunks), size, distinct);
+    }
+
+    protected void performMultiOrderIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        File tempDirectory = File.createTempFile("exmeso-multi-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        try {
+            List<Comparator<Integer>> orders = new ArrayList<Comparator<Integer>>();
+            orders.add(comparator);
+            orders.add(comparator.reversed());
+            orders.add(Comparator.comparing((Integer i) -> i & 0xf).thenComparing(comparator));
+            List<ExternalMergeSort<Integer>> sorters = new ArrayList<ExternalMergeSort<Integer>>();
+            for (Comparator<Integer> order : orders) {
+                sorters.add(ExternalMergeSort.newSorter(serializer, order)
+                        .withTempDirectory(tempDirectory)
+                        .withChunkSize(100)
+                        .withMaxOpenFiles(5)
+                        .withDistinct(distinct)
+                        .withCleanup(true)
+                        .build());
+            }
+            // both a single chunk, which is sorted in memory, and many chunks
+            for (int size : new int[] { 50, 3456 }) {
+                List<Integer> input = new ArrayList<Integer>();
+                Iterator<Integer> random = new RandomIntIterator(size, new Random(size));
+                while (random.hasNext()) {
+                    input.add(random.next() % 1000);
+                }
+                List<CloseableIterator<Integer>> iters = ExternalMergeSort.mergeSortAll(input.iterator(), sorters);
+                assertEquals(orders.size(), iters.size());
+                List<Integer> expected = null;
+                for (int i=0; i < orders.size(); i++) {
+                    List<Integer> sorted = new ArrayList<Integer>();
+                    CloseableIterator<Integer> iter = iters.get(i);
+                    try {
+                        while (iter.hasNext()) {
+                            sorted.add(iter.next());
+                        }
+                    } finally {
+                        iter.close();
+                    }
+                    assertSorted(serializer, orders.get(i), sorted, size, distinct);
+                    // every order has the same values
+                    Collections.sort(sorted, comparator);
+                    if (expected == null) {
+                        expected = sorted;
+                    } else {
+                        assertEquals(expected, sorted);
+                    }
+                }
+                assertEquals(0, tempDirectory.listFiles().length);
+            }
+
+            // sorters that would read the input differently are rejected
+            List<ExternalMergeSort<Integer>> mismatched = new ArrayList<ExternalMergeSort<Integer>>(sorters);
+            mismatched.add(ExternalMergeSort.newSorter(serializer, comparator).withChunkSize(200).build());
+            try {
+                ExternalMergeSort.mergeSortAll(Collections.<Integer>emptyIterator(), mismatched);
+                fail("Different chunk sizes were accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            mismatched.set(mismatched.size() - 1, ExternalMergeSort.newSorter(serializer, comparator).withChunkSize(100).withPartitions(4).build());
+            try {
+                ExternalMergeSort.mergeSortAll(Collections.<Integer>emptyIterator(), mismatched);
+                fail("Partitions were accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    protected void performSinkIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException, InterruptedException {
+        File tempDirectory = File.createTempFile("exmeso-sink-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        try {
+            ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(100)
+                    .withMaxOpenFiles(5)
+                    .withDistinct(distinct)
+                    .withCleanup(true)
+                    .build();
+            final SortSink<Integer> sink = sort.newSink();
+            final int producers = 4;
+            final int perProducer = 1234;
+            final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int p=0; p < producers; p++) {
+                final boolean batches = p % 2 == 0;
+                threads.add(new Thread(() -> {
+                    try {
+                        Iterator<Integer> values = new RandomIntIterator(perProducer);
+                        List<Integer> batch = new ArrayList<Integer>();
+                        while (values.hasNext()) {
+                            if (batches) {
+                                batch.add(values.next());
+                                if (batch.size() == 37 || !values.hasNext()) {
+                                    sink.addAll(batch);
+                                    batch.clear();
+                                }
+                            } else {
+                                sink.add(values.next());
+                            }
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Collections.emptyList(), errors);
+            // each producer has spilled its full chunks
+            assertEquals(producers * (perProducer / 100), tempDirectory.listFiles().length);
+            assertSorted(serializer, comparator, sink.finish(), producers * perProducer, distinct);
+            assertEquals(0, tempDirectory.listFiles().length);
+            try {
+                sink.add(1);
+                fail("Values cannot be added after finish");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            // a sink that never spilled is merged in memory
+            SortSink<Integer> small = sort.newSink();
+            small.addAll(Collections.singletonList(3));
+            small.add(1);
+            small.add(2);
+            List<Integer> values = new ArrayList<Integer>();
+            CloseableIterator<Integer> iter = small.finish();
+            while (iter.hasNext()) {
+                values.add(iter.next());
+            }
+            iter.close();
+            assertSorted(serializer, comparator, values, 3, distinct);
+            assertFalse(sort.newSink().finish().hasNext());
+
+            // a chunk that fails to spill stays buffered and is not lost
+            final AtomicBoolean fail = new AtomicBoolean(true);
+            Serializer<Integer> failing = new IteratorSerializer<Integer>(serializer) {
+                @Override
+                public void writeValues(Iterator<Integer> values, OutputStream out) throws IOException {
+                    if (fail.getAndSet(false)) {
+                        throw new IOException("Spill failed");
+                    }
+                    super.writeValues(values, out);
+                }
+            };
+            SortSink<Integer> failingSink = ExternalMergeSort.newSorter(failing, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(100)
+                    .withDistinct(distinct)
+                    .withCleanup(true)
+                    .build()
+                    .newSink();
+            Iterator<Integer> random = new RandomIntIterator(250);
+            int failures = 0;
+            while (random.hasNext()) {
+                try {
+                    failingSink.add(random.next());
+                } catch (IOException e) {
+                    failures++;
+                }
+            }
+            assertEquals(1, failures);
+            assertSorted(serializer, comparator, failingSink.finish(), 250, distinct);
+            assertEquals(0, tempDirectory.listFiles().length);
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    protected void performResourceManagerIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException, InterruptedException {
+        final SortResourceManager manager = SortResourceManager.newManager()
+                .withMaxValues(250)
+                .withMaxOpenFiles(10)
+                .build();
+        final ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .withResourceManager(manager)
+                .build();
+        final int size = 2345;
+        // more sorts than the budgets can give full grants at the same time
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t=0; t < 5; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    CloseableIterator<Integer> iter = sort.mergeSort(new RandomIntIterator(size));
+                    assertTrue(manager.getAvailableValues() >= 0);
+                    assertTrue(manager.getAvailableOpenFiles() >= 0);
+                    assertSorted(serializer, comparator, iter, size, distinct);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        // closing the results returned the grants
+        assertEquals(250, manager.getAvailableValues());
+        assertEquals(10, manager.getAvailableOpenFiles());
+
+        SortResourceManager small = SortResourceManager.newManager()
+                .withMaxTempBytes(10)
+                .build();
+        ExternalMergeSort<Integer> limited = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withDistinct(distinct)
+                .withResourceManager(small)
+                .build();
+        try {
+            limited.mergeSort(new RandomIntIterator(size));
+            fail("The temporary space quota was exceeded");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, small.getTempBytes());
+        assertEquals(1000000, small.getAvailableValues());
+    }
+
+    protected void performHashDistinctIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        File tempDirectory = File.createTempFile("exmeso-hash-", "");
+        tempDirectory.delete();
+        tempDirectory.mkdir();
+        try {
+            ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                    .withTempDirectory(tempDirectory)
+                    .withChunkSize(100)
+                    .withMaxOpenFiles(5)
+                    .withDistinct(distinct)
+                    .withHashDistinct(500)
+                    .withCleanup(true)
+                    .build();
+            int size = 5000;
+            // few distinct values are deduplicated in memory without chunk files,
+            // while a sort that is not distinct does not use the table
+            Random random = new Random(size);
+            List<Integer> duplicated = new ArrayList<Integer>();
+            for (int i=0; i < size; i++) {
+                duplicated.add(random.nextInt(300));
+            }
+            List<Integer> expected = sorted(duplicated, comparator, distinct);
+            CloseableIterator<Integer> iter = sort.mergeSort(duplicated.iterator());
+            if (distinct) {
+                assertEquals(0, tempDirectory.listFiles().length);
+            } else {
+                assertTrue(tempDirectory.listFiles().length > 0);
+            }
+            List<Integer> result = new ArrayList<Integer>();
+            while (iter.hasNext()) {
+                result.add(iter.next());
+            }
+            iter.close();
+            assertEquals(expected, result);
+
+            // too many distinct values overflow the table and are sorted in chunks
+            List<Integer> unique = new ArrayList<Integer>();
+            for (int i=0; i < size; i++) {
+                unique.add(i % 2 == 0 ? i : -i);
+            }
+            Collections.shuffle(unique, random);
+            iter = sort.mergeSort(unique.iterator());
+            assertTrue(tempDirectory.listFiles().length > 0);
+            assertSorted(serializer, comparator, iter, size, false);
+            assertEquals(0, tempDirectory.listFiles().length);
+        } finally {
+            for (File file : tempDirectory.listFiles()) {
+                file.delete();
+            }
+            tempDirectory.delete();
+        }
+    }
+
+    protected void performDirectIOIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDirectIO(true)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 3456;
+        assertSorted(serializer, comparator, sort, new RandomIntIterator(size), size, distinct);
+        assertSorted(serializer, comparator, sort.mergeSortedChunks(sort.writeSortedChunks(new RandomIntIterator(size))), size, distinct);
+
+        // the manifest syncs every chunk file it records
+        File manifestFile = File.createTempFile("exmeso-manifest-", "");
+        manifestFile.delete();
+        SortManifest manifest = SortManifest.create(manifestFile);
+        assertSorted(serializer, comparator, sort.mergeSort(new RandomIntIterator(size), manifest), size, distinct);
+        assertFalse("Manifest not deleted", manifestFile.exists());
+    }
+
+    protected void performGroupedIntegerSort(Serializer<Integer> serializer, Comparator<Integer> comparator, boolean distinct) throws IOException {
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(distinct)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        int size = 5000;
+        Random random = new Random();
+        List<Integer> input = new ArrayList<Integer>();
+        Map<Integer,Integer> counts = new TreeMap<Integer,Integer>(comparator);
+        for (int n=0; n < size; n++) {
+            Integer value = random.nextInt(500) - 250;
+            input.add(value);
+            counts.merge(value, 1, Integer::sum);
+        }
+        Iterator<Map.Entry<Integer,Integer>> expected = counts.entrySet().iterator();
+        CloseableIterator<Group<Integer,Integer>> groups = sort.mergeSortGrouped(input.iterator(), i -> i);
+        try {
+            int g = 0;
+            while (groups.hasNext()) {
+                Group<Integer,Integer> group = groups.next();
+                Map.Entry<Integer,Integer> entry = expected.next();
+                assertEquals(entry.getKey(), group.getKey());
+                // leave every third group partially read
+                int limit = g++ % 3 == 0 ? 1 : Integer.MAX_VALUE;
+                int count = 0;
+                while (count < limit && group.hasNext()) {
+                    assertEquals(entry.getKey(), group.next());
+                    count++;
+                }
+                assertEquals(Math.min(limit, distinct ? 1 : entry.getValue()), count);
+            }
+            assertFalse("Missing groups", expected.hasNext());
+        } finally {
+            groups.close();
+        }
+
+        // groups by a leading part of the sort order
+        List<File> sortedChunks = sort.writeSortedChunks(input.iterator());
+        groups = sort.mergeSortedChunksGrouped(sortedChunks, i -> Math.floorDiv(i, 100));
+        try {
+            Integer last = null;
+            int count = 0;
+            while (groups.hasNext()) {
+                Group<Integer,Integer> group = groups.next();
+                assertTrue("Groups not sorted", last == null || last < group.getKey());
+                last = group.getKey();
+                while (group.hasNext()) {
+                    assertEquals(group.getKey(), (Integer)Math.floorDiv(group.next(), 100));
+                    count++;
+                }
+                assertFalse(group.hasNext());
+            }
+            assertEquals(distinct ? counts.size() : size, count);
+        } finally {
+            groups.close();
+        }
+    }
+
+    private void assertSorted(Serializer<Integer> serializer, Comparator<Integer> comparator, List<Integer> values, int size, boolean distinct) {
+        for (int i=1; i < values.size(); i++) {
+            assertTrue(values.get(i) + " not sorted after " + values.get(i-1), comparator.compare(values.get(i), values.get(i-1)) >= 0);
+        }
+        if (!distinct) {
+            assertEquals(size, values.size());
+        }
+    }
+
     private void assertSorted(Serializer<Integer> serializer, Comparator<Integer> comparator, ExternalMergeSort<Integer> sort, Iterator<Integer> input, int size, boolean distinct) throws IOException {
         long st = System.currentTimeMillis();
-        int last = Integer.MIN_VALUE;
         CloseableIterator<Integer> iter = sort.mergeSort(input);
         if (ExternalMergeSort.debug) {
             System.out.println("A: " + (System.currentTimeMillis() - st) + "ms");
         }
+        assertSorted(serializer, comparator, iter, size, distinct);
+        if (ExternalMergeSort.debug) {
+            System.out.println("B: " + (System.currentTimeMillis() - st) + "ms");
+        }
+    }
+
+    private void assertSorted(Serializer<Integer> serializer, Comparator<Integer> comparator, CloseableIterator<Integer> iter, int size, boolean distinct) throws IOException {
+        int last = Integer.MIN_VALUE;
         try {
             int count = 0;
             while (iter.hasNext()) {
@@ -96,9 +1035,6 @@ public abstract class AbstractExternalMergeSortTest {
         } finally {
             iter.close();
         }
-        if (ExternalMergeSort.debug) {
-            System.out.println("B: " + (System.currentTimeMillis() - st) + "ms");
-        }
     }
 
 }
@@ -0,0 +1,91 @@
+package org.geirove.exmeso;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class DirectIOTest {
+
+    private static byte[] bytes(int size) {
+        byte[] result = new byte[size];
+        new Random(size).nextBytes(result);
+        return result;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // mix single byte reads with reads of odd sizes
+        int b = in.read();
+        if (b >= 0) {
+            out.write(b);
+            byte[] buffer = new byte[4099];
+            int n;
+            while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File file = File.createTempFile("exmeso-direct-", "");
+        try {
+            OutputStream probe = DirectIO.openOutput(file);
+            Assume.assumeTrue("Direct I/O not supported by the temporary directory", probe != null);
+            probe.close();
+            int blockSize = (int)Files.getFileStore(file.toPath()).getBlockSize();
+            int[] sizes = { 0, 1, blockSize - 1, blockSize, blockSize + 1, 3 * blockSize + 7, DirectIO.BUFFER_SIZE + 12345, 2 * DirectIO.BUFFER_SIZE };
+            for (int size : sizes) {
+                byte[] data = bytes(size);
+                OutputStream out = DirectIO.openOutput(file);
+                assertNotNull(out);
+                try {
+                    // write both single bytes and ranges
+                    if (size > 0) {
+                        out.write(data[0]);
+                        out.write(data, 1, size - 1);
+                    }
+                } finally {
+                    out.close();
+                }
+                assertEquals(size, file.length());
+                assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+
+                // a full size buffer, a share of the read budget, and a single block
+                for (int fanIn : new int[] { 1, 25, Integer.MAX_VALUE }) {
+                    InputStream in = DirectIO.openInput(file, fanIn);
+                    assertNotNull(in);
+                    try {
+                        assertArrayEquals(data, readAll(in));
+                        assertEquals(-1, in.read());
+                    } finally {
+                        in.close();
+                    }
+                }
+            }
+
+            // sync writes the padded tail and truncates before forcing
+            DirectIO.DirectOutputStream out = DirectIO.openOutput(file);
+            byte[] data = bytes(blockSize + 3);
+            out.write(data);
+            out.sync();
+            out.close();
+            assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
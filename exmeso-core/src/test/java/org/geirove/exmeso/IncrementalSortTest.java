@@ -0,0 +1,229 @@
+package org.geirove.exmeso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.geirove.exmeso.codec.CodecSerializer;
+import org.geirove.exmeso.codec.Codecs;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IncrementalSortTest {
+
+    // values are a key in the high 32 bits and a payload in the low 32 bits,
+    // and are ordered by the key only
+    private static final Comparator<Long> KEY_ORDER = Comparator.comparingLong((Long v) -> v >> 32);
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("exmeso-incremental-").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static long value(int key, int payload) {
+        return ((long)key << 32) | payload;
+    }
+
+    private static ExternalMergeSort<Long> newSort(boolean distinct) {
+        return ExternalMergeSort.newSorter(new CodecSerializer<Long>(Codecs.LONG), KEY_ORDER)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(distinct)
+                .build();
+    }
+
+    private static List<Long> delta(Random random, int size, int payload) {
+        List<Long> result = new ArrayList<Long>();
+        for (int n=0; n < size; n++) {
+            result.add(value(random.nextInt(1000), payload));
+        }
+        return result;
+    }
+
+    private static List<Long> readAll(IncrementalSort<Long> store) throws IOException {
+        List<Long> result = new ArrayList<Long>();
+        CloseableIterator<Long> iter = store.iterator();
+        try {
+            while (iter.hasNext()) {
+                result.add(iter.next());
+            }
+        } finally {
+            iter.close();
+        }
+        return result;
+    }
+
+    @Test
+    public void testOverwrite() throws IOException {
+        Random random = new Random(42);
+        Map<Long,Long> expected = new TreeMap<Long,Long>();
+        IncrementalSort<Long> store = newSort(true).newIncrementalSort(directory)
+                .withRunsPerLevel(2)
+                .withMaxLevels(3)
+                .build();
+        for (int day=0; day < 20; day++) {
+            List<Long> delta = delta(random, 150, day);
+            for (Long value : delta) {
+                expected.put(value >> 32, value);
+            }
+            store.add(delta.iterator());
+            assertTrue("Too many runs: " + store, store.getRunCount() <= 2 * 3);
+            assertTrue("Too many levels: " + store, store.getLevelCount() <= 3);
+        }
+        assertEquals(new ArrayList<Long>(expected.values()), readAll(store));
+        store.close();
+
+        // the runs are found again when the directory is reopened
+        store = newSort(true).newIncrementalSort(directory).build();
+        assertEquals(new ArrayList<Long>(expected.values()), readAll(store));
+        store.close();
+    }
+
+    @Test
+    public void testCombiner() throws IOException {
+        Random random = new Random(43);
+        Map<Long,Long> counts = new TreeMap<Long,Long>();
+        // the payload counts the values of each key
+        IncrementalSort<Long> store = newSort(false).newIncrementalSort(directory)
+                .withRunsPerLevel(3)
+                .withCombiner((older, newer) -> older + (newer & 0xffffffffL))
+                .build();
+        for (int day=0; day < 10; day++) {
+            List<Long> delta = delta(random, 200, 1);
+            for (Long value : delta) {
+                counts.merge(value >> 32, 1L, Long::sum);
+            }
+            store.add(delta.iterator());
+        }
+        List<Long> actual = readAll(store);
+        assertEquals(counts.size(), actual.size());
+        for (Long value : actual) {
+            assertEquals(counts.get(value >> 32), (Long)(value & 0xffffffffL));
+        }
+        store.close();
+    }
+
+    @Test
+    public void testCombinerOrder() throws IOException {
+        // the combiner concatenates, so the order of the values is visible
+        IncrementalSort<String> store = ExternalMergeSort.newSorter(new CodecSerializer<String>(Codecs.STRING),
+                Comparator.comparing((String v) -> v.substring(0, 1)))
+                .withChunkSize(100)
+                .withDistinct(false)
+                .build()
+                .newIncrementalSort(directory)
+                .withRunsPerLevel(10)
+                .withCombiner((older, newer) -> older + "<" + newer)
+                .build();
+        store.add(Arrays.asList("a1", "b1", "a2").iterator());
+        store.add(Arrays.asList("a3", "b2").iterator());
+        store.add(Arrays.asList("c1", "a4", "a5").iterator());
+        CloseableIterator<String> iter = store.iterator();
+        List<String> actual = new ArrayList<String>();
+        try {
+            while (iter.hasNext()) {
+                actual.add(iter.next());
+            }
+        } finally {
+            iter.close();
+        }
+        assertEquals(Arrays.asList("a1<a2<a3<a4<a5", "b1<b2", "c1"), actual);
+        store.close();
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws IOException {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Random random = new Random(44);
+            Map<Long,Long> expected = new TreeMap<Long,Long>();
+            IncrementalSort<Long> store = newSort(true).newIncrementalSort(directory)
+                    .withRunsPerLevel(2)
+                    .withMaxLevels(2)
+                    .withCompactionExecutor(executor)
+                    .build();
+            for (int day=0; day < 15; day++) {
+                List<Long> delta = delta(random, 100, day);
+                for (Long value : delta) {
+                    expected.put(value >> 32, value);
+                }
+                store.add(delta.iterator());
+                // reads are correct whether or not compaction has caught up
+                assertEquals(new ArrayList<Long>(expected.values()), readAll(store));
+            }
+            store.close();
+            assertTrue("Too many runs: " + store, store.getRunCount() <= 2 * 2);
+            assertEquals(new ArrayList<Long>(expected.values()), readAll(store));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        IncrementalSort<Long> store = newSort(true).newIncrementalSort(directory).build();
+        store.add(delta(new Random(45), 300, 0).iterator());
+        List<Long> expected = readAll(store);
+        store.close();
+
+        // files left by an add or compaction that was interrupted
+        File orphan = new File(directory, "run-999.exmeso");
+        File partial = new File(directory, "run-123.tmp");
+        assertTrue(orphan.createNewFile());
+        assertTrue(partial.createNewFile());
+
+        store = newSort(true).newIncrementalSort(directory).build();
+        assertFalse("Orphan run not deleted", orphan.exists());
+        assertFalse("Partial run not deleted", partial.exists());
+        assertEquals(expected, readAll(store));
+        store.close();
+    }
+
+    @Test
+    public void testLock() throws IOException {
+        IncrementalSort<Long> store = newSort(true).newIncrementalSort(directory).build();
+        store.add(delta(new Random(46), 100, 0).iterator());
+        List<Long> expected = readAll(store);
+        try {
+            newSort(true).newIncrementalSort(directory).build();
+            fail("Directory opened twice");
+        } catch (IOException e) {
+            // expected
+        }
+        store.close();
+
+        // the directory can be opened again once it is closed
+        store = newSort(true).newIncrementalSort(directory).build();
+        assertEquals(expected, readAll(store));
+        store.close();
+    }
+
+}
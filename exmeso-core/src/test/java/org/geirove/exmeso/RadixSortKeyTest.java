@@ -0,0 +1,138 @@
+package org.geirove.exmeso;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import org.geirove.exmeso.codec.CodecSerializer;
+import org.geirove.exmeso.codec.Codecs;
+import org.junit.Test;
+
+public class RadixSortKeyTest {
+
+    private static final String[] PREFIXES = { "", "https://example.com/", "https://example.com/a/b/c/", "/usr/local/", "\u00e6\u00f8", "\ud83d\ude00" };
+    private static final int[] SYMBOLS = { 'a', 'b', '/', '.', 0, 0xe5, 0xffff, 0x1f600 };
+
+    private static String[] strings(int size) {
+        Random random = new Random(size);
+        String[] result = new String[size];
+        for (int n=0; n < size; n++) {
+            StringBuilder sb = new StringBuilder(PREFIXES[random.nextInt(PREFIXES.length)]);
+            int length = random.nextInt(6);
+            for (int i=0; i < length; i++) {
+                sb.appendCodePoint(SYMBOLS[random.nextInt(SYMBOLS.length)]);
+            }
+            result[n] = sb.toString();
+        }
+        return result;
+    }
+
+    private static void assertSortsStrings(String[] values, boolean distinct) {
+        String[] expected = values.clone();
+        Arrays.sort(expected);
+        if (distinct) {
+            expected = new TreeSet<String>(Arrays.asList(expected)).toArray(new String[0]);
+        }
+        String[] actual = values.clone();
+        int size = RadixSortKey.strings(Function.<String>identity()).sort(actual, distinct);
+        assertArrayEquals(expected, Arrays.copyOf(actual, size));
+    }
+
+    @Test
+    public void testSortStrings() {
+        for (int size : new int[] { 0, 1, 2, 15, 16, 17, 1000, 10000 }) {
+            assertSortsStrings(strings(size), false);
+            assertSortsStrings(strings(size), true);
+        }
+        // all equal, sorted and reversed input
+        String[] same = new String[100];
+        Arrays.fill(same, "https://example.com/");
+        assertSortsStrings(same, false);
+        assertSortsStrings(same, true);
+        String[] sorted = strings(1000);
+        Arrays.sort(sorted);
+        assertSortsStrings(sorted, false);
+        Arrays.sort(sorted, Comparator.reverseOrder());
+        assertSortsStrings(sorted, false);
+    }
+
+    @Test
+    public void testStable() {
+        // keys with a long shared prefix, followed by a payload that is not
+        // part of the key
+        Function<String,String> key = (String s) -> s.substring(0, s.indexOf('\t'));
+        Random random = new Random(7);
+        for (int size : new int[] { 10, 40, 1000, 5000 }) {
+            String[] values = new String[size];
+            for (int i=0; i < size; i++) {
+                values[i] = "https://example.com/" + random.nextInt(20) + "\t" + i;
+            }
+            String[] expected = values.clone();
+            Arrays.sort(expected, Comparator.comparing(key));
+            String[] actual = values.clone();
+            assertEquals(size, RadixSortKey.strings(key).sort(actual, false));
+            assertArrayEquals(expected, actual);
+
+            // distinct keeps the first value of each key
+            List<String> first = new ArrayList<String>();
+            for (int i=0; i < expected.length; i++) {
+                if (i == 0 || !key.apply(expected[i-1]).equals(key.apply(expected[i]))) {
+                    first.add(expected[i]);
+                }
+            }
+            actual = values.clone();
+            int distinct = RadixSortKey.strings(key).sort(actual, true);
+            assertEquals(first, Arrays.asList(actual).subList(0, distinct));
+        }
+    }
+
+    @Test
+    public void testSortBytes() {
+        Random random = new Random(42);
+        byte[][] values = new byte[5000][];
+        for (int n=0; n < values.length; n++) {
+            values[n] = new byte[random.nextInt(8)];
+            for (int i=0; i < values[n].length; i++) {
+                values[n][i] = (byte)(random.nextBoolean() ? random.nextInt(3) : 254 + random.nextInt(2));
+            }
+        }
+        byte[][] expected = values.clone();
+        Arrays.sort(expected, Arrays::compareUnsigned);
+        byte[][] actual = values.clone();
+        assertEquals(values.length, RadixSortKey.bytes(Function.<byte[]>identity()).sort(actual, false));
+        for (int n=0; n < values.length; n++) {
+            assertArrayEquals(expected[n], actual[n]);
+        }
+    }
+
+    @Test
+    public void testStringSortKeySort() throws IOException {
+        ExternalMergeSort<String> sort = ExternalMergeSort.newSorter(new CodecSerializer<String>(Codecs.STRING), Comparator.<String>naturalOrder())
+                .withStringSortKey(Function.<String>identity())
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(true)
+                .build();
+        String[] input = strings(2345);
+        List<String> expected = new ArrayList<String>(new TreeSet<String>(Arrays.asList(input)));
+        List<String> actual = new ArrayList<String>();
+        CloseableIterator<String> iter = sort.mergeSort(Arrays.asList(input).iterator());
+        try {
+            while (iter.hasNext()) {
+                actual.add(iter.next());
+            }
+        } finally {
+            iter.close();
+        }
+        assertEquals(expected, actual);
+    }
+
+}
@@ -0,0 +1,116 @@
+package org.geirove.exmeso;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.geirove.exmeso.codec.CodecSerializer;
+import org.geirove.exmeso.codec.Codecs;
+import org.junit.Test;
+
+public class SortOrderTest {
+
+    private static class Value {
+
+        private final int i;
+        private final long l;
+        private final double d;
+        private final String s;
+
+        private Value(int i, long l, double d, String s) {
+            this.i = i;
+            this.l = l;
+            this.d = d;
+            this.s = s;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + i + "," + l + "," + d + "," + s + ")";
+        }
+    }
+
+    private static final int[] INTS = { Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE };
+    private static final long[] LONGS = { Long.MIN_VALUE, -1L, 0L, 1L, Long.MAX_VALUE };
+    private static final double[] DOUBLES = { Double.NEGATIVE_INFINITY, -1.5, -0.0, 0.0, Double.MIN_VALUE, 2.5, Double.POSITIVE_INFINITY, Double.NaN };
+    private static final String[] STRINGS = { "", "\u0000", "\u0000a", "a", "a\u0000", "ab", "b", "\u00e6", "\uffff", "\ud83d\ude00" };
+
+    private static List<Value> values(int size) {
+        Random random = new Random(size);
+        List<Value> result = new ArrayList<Value>();
+        for (int n=0; n < size; n++) {
+            result.add(new Value(INTS[random.nextInt(INTS.length)], LONGS[random.nextInt(LONGS.length)],
+                    DOUBLES[random.nextInt(DOUBLES.length)], STRINGS[random.nextInt(STRINGS.length)]));
+        }
+        return result;
+    }
+
+    private static void assertSameOrder(Comparator<Value> expected, SortOrder<Value> order) {
+        Comparator<Value> actual = order.comparator();
+        List<Value> values = values(500);
+        for (Value v1 : values) {
+            for (Value v2 : values.subList(0, 50)) {
+                assertEquals(v1 + " vs " + v2, Integer.signum(expected.compare(v1, v2)), Integer.signum(actual.compare(v1, v2)));
+            }
+        }
+    }
+
+    @Test
+    public void testSingleFields() {
+        assertSameOrder(Comparator.comparingInt((Value v) -> v.i), SortOrder.byInt((Value v) -> v.i));
+        assertSameOrder(Comparator.comparingLong((Value v) -> v.l), SortOrder.byLong((Value v) -> v.l));
+        assertSameOrder(Comparator.comparingDouble((Value v) -> v.d), SortOrder.byDouble((Value v) -> v.d));
+        assertSameOrder(Comparator.comparing((Value v) -> v.s), SortOrder.byString((Value v) -> v.s));
+        assertSameOrder(Comparator.comparingLong((Value v) -> v.l).reversed(), SortOrder.byLong((Value v) -> v.l).reversed());
+        assertSameOrder(Comparator.comparingDouble((Value v) -> v.d).reversed(), SortOrder.byDouble((Value v) -> v.d).descending());
+        assertSameOrder(Comparator.comparing((Value v) -> v.s).reversed(), SortOrder.byString((Value v) -> v.s).descending());
+    }
+
+    @Test
+    public void testCompositeFields() {
+        assertSameOrder(Comparator.comparing((Value v) -> v.s).thenComparingLong(v -> v.l),
+                SortOrder.byString((Value v) -> v.s).thenByLong(v -> v.l));
+        assertSameOrder(Comparator.comparing((Value v) -> v.s).thenComparing(Comparator.comparingInt((Value v) -> v.i).reversed()),
+                SortOrder.byString((Value v) -> v.s).thenByInt(v -> v.i).descending());
+        assertSameOrder(Comparator.comparingDouble((Value v) -> v.d).thenComparing(v -> v.s).thenComparingInt(v -> v.i).reversed(),
+                SortOrder.byDouble((Value v) -> v.d).thenByString(v -> v.s).thenByInt(v -> v.i).reversed());
+        assertSameOrder(Comparator.comparing((Value v) -> v.s, Comparator.reverseOrder()).thenComparing(v -> v.s.length()),
+                SortOrder.byString((Value v) -> v.s).descending().thenByInt(v -> v.s.length()));
+    }
+
+    @Test
+    public void testSortOrderSort() throws IOException {
+        SortOrder<Integer> order = SortOrder.byInt((Integer i) -> Math.floorMod(i, 10)).thenByInt(i -> i).descending();
+        ExternalMergeSort<Integer> sort = ExternalMergeSort.newSorter(new CodecSerializer<Integer>(Codecs.INTEGER), order)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(false)
+                .build();
+        Random random = new Random(42);
+        List<Integer> input = new ArrayList<Integer>();
+        for (int n=0; n < 2345; n++) {
+            input.add(random.nextInt());
+        }
+        Comparator<Integer> expected = Comparator.comparingInt((Integer i) -> Math.floorMod(i, 10)).thenComparing(Comparator.<Integer>reverseOrder());
+        int count = 0;
+        Integer last = null;
+        CloseableIterator<Integer> iter = sort.mergeSort(input.iterator());
+        try {
+            while (iter.hasNext()) {
+                Integer next = iter.next();
+                assertTrue(next + " not sorted after " + last, last == null || expected.compare(last, next) <= 0);
+                last = next;
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+        assertEquals(input.size(), count);
+    }
+
+}
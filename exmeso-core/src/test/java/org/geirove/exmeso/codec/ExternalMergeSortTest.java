@@ -0,0 +1,295 @@
+package org.geirove.exmeso.codec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.geirove.exmeso.AbstractExternalMergeSortTest;
+import org.geirove.exmeso.CloseableIterator;
+import org.geirove.exmeso.ExternalMergeSort;
+import org.junit.Test;
+
+public class ExternalMergeSortTest extends AbstractExternalMergeSortTest {
+
+    private static final Comparator<Integer> integerComparator = new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1.compareTo(o2);
+        }
+    };
+    private static final CodecSerializer<Integer> integerSerializer = new CodecSerializer<Integer>(Codecs.INTEGER);
+
+    private static class Record {
+        private int i;
+        private long l;
+        private double d;
+        private String s;
+        private byte[] b;
+    }
+
+    private static final RecordCodec<Record> recordCodec = new RecordCodec<Record>() {
+        @Override
+        public void write(Record value, RecordOutput out) throws IOException {
+            out.writeInt(value.i);
+            out.writeVarLong(value.l);
+            out.writeDouble(value.d);
+            out.writeString(value.s);
+            out.writeBytes(value.b);
+        }
+        @Override
+        public Record read(RecordInput in, Record reuse) throws IOException {
+            Record result = reuse == null ? new Record() : reuse;
+            result.i = in.readInt();
+            result.l = in.readVarLong();
+            result.d = in.readDouble();
+            result.s = in.readString();
+            result.b = in.readBytes();
+            return result;
+        }
+    };
+
+    @Test
+    @Override
+    public void testLargeIntegerSort() throws IOException {
+        performLargeIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testPrimeIntegerSort() throws IOException {
+        performPrimeIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testMultiMergeIntegerSort() throws IOException {
+        performMultiMergeIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResidualIntegerSort() throws IOException {
+        performResidualIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResumeIntegerSort() throws IOException {
+        performResumeIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testRunFileIntegerSort() throws IOException {
+        performRunFileIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testAsyncIntegerSort() throws Exception {
+        performAsyncIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testStreamIntegerSort() throws IOException {
+        performStreamIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testOutputIntegerSort() throws IOException {
+        performOutputIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testPartitionIntegerSort() throws IOException {
+        performPartitionIntegerSort(integerSerializer, integerComparator, false);
+        performPartitionIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testPresortedIntegerSort() throws IOException {
+        performPresortedIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testHeapPressureIntegerSort() throws IOException, InterruptedException {
+        performHeapPressureIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testMultiOrderIntegerSort() throws IOException {
+        performMultiOrderIntegerSort(integerSerializer, integerComparator, false);
+        performMultiOrderIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testSinkIntegerSort() throws IOException, InterruptedException {
+        performSinkIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResourceManagerIntegerSort() throws IOException, InterruptedException {
+        performResourceManagerIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testHashDistinctIntegerSort() throws IOException {
+        performHashDistinctIntegerSort(integerSerializer, integerComparator, false);
+        performHashDistinctIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testDirectIOIntegerSort() throws IOException {
+        performDirectIOIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testGroupedIntegerSort() throws IOException {
+        performGroupedIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testIteratorIntegerSort() throws IOException {
+        performIteratorIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testSortKeyIntegerSort() throws IOException {
+        performSortKeyIntegerSort(integerSerializer, integerComparator, false);
+        performSortKeyIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testReuseIntegerSort() throws IOException {
+        performReuseIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    /**
+     * A batch serializer with a concrete type, which the engine must be able
+     * to use without casting its batches to String[].
+     */
+    private static class StringBatchSerializer implements ExternalMergeSort.BatchSerializer<String> {
+
+        private final CodecSerializer<String> delegate = new CodecSerializer<String>(Codecs.STRING);
+        private int readBatches;
+        private int writtenBatches;
+
+        @Override
+        public void writeValues(Iterator<String> values, OutputStream out) throws IOException {
+            delegate.writeValues(values, out);
+        }
+
+        @Override
+        public Iterator<String> readValues(InputStream input) throws IOException {
+            return delegate.readValues(input);
+        }
+
+        @Override
+        public BatchReader<String> createReader(InputStream input) throws IOException {
+            final BatchReader<String> reader = delegate.createReader(input);
+            return new BatchReader<String>() {
+                @Override
+                public int readBatch(Object[] dst) throws IOException {
+                    readBatches++;
+                    return reader.readBatch(dst);
+                }
+            };
+        }
+
+        @Override
+        public BatchWriter<String> createWriter(OutputStream out) throws IOException {
+            final BatchWriter<String> writer = delegate.createWriter(out);
+            return new BatchWriter<String>() {
+                @Override
+                public void writeBatch(Object[] src, int n) throws IOException {
+                    writtenBatches++;
+                    for (int i=0; i < n; i++) {
+                        if (((String)src[i]).isEmpty()) {
+                            throw new IllegalArgumentException("Empty string in batch");
+                        }
+                    }
+                    writer.writeBatch(src, n);
+                }
+                @Override
+                public void close() throws IOException {
+                    writer.close();
+                }
+            };
+        }
+
+    }
+
+    @Test
+    public void testConcreteBatchSerializer() throws IOException {
+        StringBatchSerializer serializer = new StringBatchSerializer();
+        ExternalMergeSort<String> sort = ExternalMergeSort.newSorter(serializer, Comparator.<String>naturalOrder())
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withDistinct(false)
+                .withCleanup(!ExternalMergeSort.debug)
+                .build();
+        List<String> values = new ArrayList<String>();
+        Random random = new Random(17);
+        for (int i=0; i < 2345; i++) {
+            values.add("s" + random.nextInt(1000));
+        }
+        List<String> expected = new ArrayList<String>(values);
+        Collections.sort(expected);
+        List<String> actual = new ArrayList<String>();
+        try (CloseableIterator<String> iter = sort.mergeSort(values.iterator())) {
+            while (iter.hasNext()) {
+                actual.add(iter.next());
+            }
+        }
+        assertEquals(expected, actual);
+        assertTrue(serializer.writtenBatches > 0);
+        assertTrue(serializer.readBatches > 0);
+    }
+
+    @Test
+    public void testRecordCodec() throws IOException {
+        // a small buffer makes values span buffer boundaries
+        CodecSerializer<Record> serializer = new CodecSerializer<Record>(recordCodec, 16);
+        Record[] records = new Record[100];
+        for (int n=0; n < records.length; n++) {
+            Record record = new Record();
+            record.i = n % 2 == 0 ? Integer.MIN_VALUE + n : Integer.MAX_VALUE - n;
+            record.l = n % 3 == 0 ? -n : Long.MAX_VALUE / (n + 1);
+            record.d = n / 7.0;
+            record.s = n % 5 == 0 ? "" : "r\u00e6kke \u2603 " + n;
+            record.b = new byte[n * 3];
+            for (int i=0; i < record.b.length; i++) {
+                record.b[i] = (byte)(i * n);
+            }
+            records[n] = record;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExternalMergeSort.BatchSerializer.BatchWriter<Record> writer = serializer.createWriter(out);
+        writer.writeBatch(records, records.length);
+        writer.close();
+
+        ExternalMergeSort.ReusingSerializer.ValueReader<Record> reader = serializer.createValueReader(new ByteArrayInputStream(out.toByteArray()));
+        Record reuse = new Record();
+        for (Record expected : records) {
+            Record actual = reader.readInto(reuse);
+            assertSame(reuse, actual);
+            assertEquals(expected.i, actual.i);
+            assertEquals(expected.l, actual.l);
+            assertEquals(expected.d, actual.d, 0.0);
+            assertEquals(expected.s, actual.s);
+            assertArrayEquals(expected.b, actual.b);
+        }
+        assertNull(reader.readInto(reuse));
+        assertFalse(serializer.readValues(new ByteArrayInputStream(new byte[0])).hasNext());
+    }
+
+}
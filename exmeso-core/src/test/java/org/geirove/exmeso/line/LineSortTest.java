@@ -0,0 +1,147 @@
+package org.geirove.exmeso.line;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+import org.geirove.exmeso.ExternalMergeSort;
+import org.junit.Test;
+
+public class LineSortTest {
+
+    private static String key(Function<byte[],byte[]> keyExtractor, String line) {
+        return new String(keyExtractor.apply(line.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testColumn() {
+        Function<byte[],byte[]> second = LineKeys.column(1, (byte)'\t');
+        assertEquals("b", key(second, "a\tb\tc"));
+        assertEquals("", key(second, "a\t\tc"));
+        assertEquals("b", key(second, "a\tb"));
+        assertEquals("", key(second, "a"));
+        assertEquals("a", key(LineKeys.column(0, (byte)','), "a,b"));
+    }
+
+    @Test
+    public void testJsonField() {
+        Function<byte[],byte[]> id = LineKeys.jsonField("id");
+        assertEquals("42", key(id, "{\"id\":42}"));
+        assertEquals("x\\\"y", key(id, "{ \"name\" : \"a,}\\\"\" , \"id\" : \"x\\\"y\" }"));
+        assertEquals("{\"id\":1}", key(id, "{\"nested\":{\"id\":2,\"a\":[1,{}]},\"id\":{\"id\":1}}"));
+        assertEquals("", key(id, "{\"nested\":{\"id\":2}}"));
+        assertEquals("", key(id, "[1,2]"));
+        assertEquals("", key(id, ""));
+        assertEquals("", key(id, "{\"id\":\"\"}"));
+    }
+
+    @Test
+    public void testNumericKeys() {
+        Function<byte[],Long> longKey = LineKeys.longValue(LineKeys.jsonField("n"));
+        assertEquals(Long.valueOf(-17), longKey.apply("{\"n\":-17}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), longKey.apply("{\"n\":-9223372036854775808}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), longKey.apply("{\"n\":\"x\"}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Long.valueOf(Long.MAX_VALUE), longKey.apply("{\"n\":9223372036854775807}".getBytes(StandardCharsets.UTF_8)));
+        // values outside the range of a long are invalid rather than wrapped around
+        assertEquals(Long.valueOf(Long.MIN_VALUE), longKey.apply("{\"n\":9223372036854775808}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), longKey.apply("{\"n\":-9223372036854775809}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(Long.valueOf(Long.MIN_VALUE), longKey.apply("{\"n\":123456789012345678901}".getBytes(StandardCharsets.UTF_8)));
+        Function<byte[],Double> doubleKey = LineKeys.doubleValue(LineKeys.column(0, (byte)' '));
+        assertEquals(2.5e3, doubleKey.apply("2.5e3 x".getBytes(StandardCharsets.UTF_8)), 0.0);
+        assertEquals(Double.NEGATIVE_INFINITY, doubleKey.apply(" x".getBytes(StandardCharsets.UTF_8)), 0.0);
+    }
+
+    @Test
+    public void testLineSerializer() throws IOException {
+        // a small buffer makes lines span buffer boundaries and grow the buffer
+        LineSerializer serializer = new LineSerializer(8);
+        String input = "first\r\n\nthe longest line of them all\nlast";
+        Iterator<byte[]> lines = serializer.readValues(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)));
+        List<String> result = new ArrayList<String>();
+        while (lines.hasNext()) {
+            result.add(new String(lines.next(), StandardCharsets.UTF_8));
+        }
+        assertEquals(Arrays.asList("first\r", "", "the longest line of them all", "last"), result);
+    }
+
+    @Test
+    public void testJsonSort() throws IOException {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<String>();
+        for (int i=0; i < 5000; i++) {
+            lines.add("{\"name\":\"n" + random.nextInt(100) + "\",\"seq\":" + random.nextInt(1000000) + ",\"tags\":[\"a\",\"b\"]}");
+        }
+        File input = File.createTempFile("exmeso-lines-", ".ndjson");
+        File output = File.createTempFile("exmeso-sorted-", ".ndjson");
+        try {
+            Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+            ExternalMergeSort<byte[]> sort = LineSort.newSorter(LineKeys.longValue(LineKeys.jsonField("seq")), Comparator.<Long>naturalOrder())
+                    .withChunkSize(300)
+                    .withMaxOpenFiles(4)
+                    .build();
+            LineSort.sort(sort, input, output);
+
+            final Function<byte[],Long> seq = LineKeys.longValue(LineKeys.jsonField("seq"));
+            Collections.sort(lines, Comparator.comparing((String line) -> seq.apply(line.getBytes(StandardCharsets.UTF_8))));
+            List<String> sorted = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+            assertEquals(lines.size(), sorted.size());
+            for (int i=0; i < lines.size(); i++) {
+                assertEquals(seq.apply(lines.get(i).getBytes(StandardCharsets.UTF_8)), seq.apply(sorted.get(i).getBytes(StandardCharsets.UTF_8)));
+            }
+            Collections.sort(lines);
+            Collections.sort(sorted);
+            assertEquals(lines, sorted);
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void testColumnSort() throws IOException {
+        String input = "3\tc\n1\ta\n2\tb\n1\ta\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExternalMergeSort<byte[]> sort = LineSort.newSorter(LineKeys.column(1, (byte)'\t'))
+                .withChunkSize(2)
+                .build();
+        LineSort.sort(sort, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals("1\ta\n1\ta\n2\tb\n3\tc\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+
+        out.reset();
+        sort = LineSort.newSorter(LineKeys.column(1, (byte)'\t'))
+                .withChunkSize(2)
+                .withDistinct(true)
+                .build();
+        LineSort.sort(sort, new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals("1\ta\n2\tb\n3\tc\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDistinctKeepsFirstLine() throws IOException {
+        // equal keys with different payloads, within one chunk
+        StringBuilder input = new StringBuilder();
+        for (int i=0; i < 40; i++) {
+            input.append("k").append(i % 3).append('\t').append(i).append('\n');
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExternalMergeSort<byte[]> sort = LineSort.newSorter(LineKeys.column(0, (byte)'\t'))
+                .withDistinct(true)
+                .build();
+        LineSort.sort(sort, new ByteArrayInputStream(input.toString().getBytes(StandardCharsets.UTF_8)), out);
+        assertEquals("k0\t0\nk1\t1\nk2\t2\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+}
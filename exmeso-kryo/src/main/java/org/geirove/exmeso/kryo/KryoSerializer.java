@@ -4,30 +4,58 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Iterator;
+import java.util.function.Supplier;
 
 import org.geirove.exmeso.ExternalMergeSort;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
-public class KryoSerializer<T> implements ExternalMergeSort.Serializer<T> {
+/**
+ * Serializer using Kryo. Values are written and read with writeObject and
+ * readObject, so chunk files are plain Kryo streams. When merging with object
+ * reuse enabled, types that implement KryoSerializable are read into the
+ * reused object through their read method.
+ * <p>
+ * A Kryo instance is not thread-safe, so by default each thread uses a Kryo
+ * of its own, created by a factory. The serializer can then be used by the
+ * sinks and parallel streams of ExternalMergeSort, which write chunk files
+ * from several threads. Each value is written and read with the Kryo of the
+ * current thread, so all the Kryo instances must be configured alike.
+ */
+public class KryoSerializer<T> implements ExternalMergeSort.ReusingSerializer<T> {
 
     private final Class<T> type;
-    private final Kryo kryo;
+    private final ThreadLocal<Kryo> kryos;
 
     public KryoSerializer(Class<T> type) {
-        this(type, new Kryo());    
+        this(type, Kryo::new);
     }
 
+    /**
+     * Creates a serializer that uses the given Kryo on all threads. It is
+     * not thread-safe, so it must not be used from several threads at once.
+     */
     public KryoSerializer(Class<T> type, Kryo kryo) {
+        this(type, () -> kryo);
+    }
+
+    /**
+     * Creates a thread-safe serializer that uses a Kryo of its own on each
+     * thread, created and configured by the factory.
+     */
+    public KryoSerializer(Class<T> type, Supplier<Kryo> factory) {
         this.type = type;
-        this.kryo = kryo;    
+        this.kryos = ThreadLocal.withInitial(factory);
     }
 
     @Override
     public void writeValues(Iterator<T> values, OutputStream out) throws IOException {
         long st = System.currentTimeMillis();
+        Kryo kryo = kryos.get();
         Output output = new Output(out);
         while (values.hasNext()) {
             T next = values.next();
@@ -41,17 +69,77 @@ public class KryoSerializer<T> implements ExternalMergeSort.Serializer<T> {
 
     @Override
     public Iterator<T> readValues(InputStream input) throws IOException {
-        return new KryoIterator<T>(kryo, type, input);
+        return new KryoIterator<T>(kryos, type, input);
+    }
+
+    @Override
+    public ValueReader<T> createValueReader(InputStream input) throws IOException {
+        return new KryoValueReader<T>(kryos, type, input);
+    }
+
+    private static class KryoValueReader<T> implements ValueReader<T> {
+
+        private final ThreadLocal<Kryo> kryos;
+        private final Class<T> type;
+        private final Input input;
+        private final ReadIntoSerializer<T> readIntoSerializer = new ReadIntoSerializer<T>();
+
+        private KryoValueReader(ThreadLocal<Kryo> kryos, Class<T> type, InputStream in) {
+            this.kryos = kryos;
+            this.type = type;
+            this.input = new Input(in, 65536);
+        }
+
+        @Override
+        public T readInto(T reuse) throws IOException {
+            if (input.eof()) {
+                return null;
+            }
+            Kryo kryo = kryos.get();
+            if (!(reuse instanceof KryoSerializable)) {
+                return kryo.readObject(input, type);
+            }
+            // readObject still reads the reference marker and tracks the
+            // reference, only the object is not created
+            readIntoSerializer.reuse = reuse;
+            try {
+                return kryo.readObject(input, type, readIntoSerializer);
+            } finally {
+                readIntoSerializer.reuse = null;
+            }
+        }
+
+    }
+
+    /**
+     * Reads a KryoSerializable into an existing object instead of a new one.
+     */
+    private static class ReadIntoSerializer<T> extends Serializer<T> {
+
+        private T reuse;
+
+        @Override
+        public void write(Kryo kryo, Output output, T object) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public T read(Kryo kryo, Input input, Class<T> type) {
+            kryo.reference(reuse);
+            ((KryoSerializable)reuse).read(kryo, input);
+            return reuse;
+        }
+
     }
 
     private static class KryoIterator<T> implements Iterator<T> {
 
-        private final Kryo kryo;
+        private final ThreadLocal<Kryo> kryos;
         private final Class<T> type;
         private final Input input;
 
-        private KryoIterator(Kryo kryo, Class<T> type, InputStream in) {
-            this.kryo = kryo;
+        private KryoIterator(ThreadLocal<Kryo> kryos, Class<T> type, InputStream in) {
+            this.kryos = kryos;
             this.type = type;
             this.input = new Input(in);
         }
@@ -63,7 +151,7 @@ public class KryoSerializer<T> implements ExternalMergeSort.Serializer<T> {
 
         @Override
         public T next() {
-            return kryo.readObject(input, type);
+            return kryos.get().readObject(input, type);
         }
 
         @Override
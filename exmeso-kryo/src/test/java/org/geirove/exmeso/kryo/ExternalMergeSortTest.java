@@ -1,11 +1,34 @@
 package org.geirove.exmeso.kryo;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.geirove.exmeso.AbstractExternalMergeSortTest;
+import org.geirove.exmeso.CloseableIterator;
+import org.geirove.exmeso.ExternalMergeSort;
+import org.geirove.exmeso.SortSink;
 import org.junit.Test;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoSerializable;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
 public class ExternalMergeSortTest extends AbstractExternalMergeSortTest {
     
     private static final Comparator<Integer> integerComparator = new Comparator<Integer>() {
@@ -32,6 +55,266 @@ public class ExternalMergeSortTest extends AbstractExternalMergeSortTest {
         performMultiMergeIntegerSort(integerSerializer, integerComparator, false);
     }
 
+    @Test
+    public void testResidualIntegerSort() throws IOException {
+        performResidualIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResumeIntegerSort() throws IOException {
+        performResumeIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testRunFileIntegerSort() throws IOException {
+        performRunFileIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testAsyncIntegerSort() throws Exception {
+        performAsyncIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testStreamIntegerSort() throws IOException {
+        performStreamIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testOutputIntegerSort() throws IOException {
+        performOutputIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testPartitionIntegerSort() throws IOException {
+        performPartitionIntegerSort(integerSerializer, integerComparator, false);
+        performPartitionIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testPresortedIntegerSort() throws IOException {
+        performPresortedIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testHeapPressureIntegerSort() throws IOException, InterruptedException {
+        performHeapPressureIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testMultiOrderIntegerSort() throws IOException {
+        performMultiOrderIntegerSort(integerSerializer, integerComparator, false);
+        performMultiOrderIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testSinkIntegerSort() throws IOException, InterruptedException {
+        performSinkIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResourceManagerIntegerSort() throws IOException, InterruptedException {
+        performResourceManagerIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testHashDistinctIntegerSort() throws IOException {
+        performHashDistinctIntegerSort(integerSerializer, integerComparator, false);
+        performHashDistinctIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testDirectIOIntegerSort() throws IOException {
+        performDirectIOIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testGroupedIntegerSort() throws IOException {
+        performGroupedIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testSortKeyIntegerSort() throws IOException {
+        performSortKeyIntegerSort(integerSerializer, integerComparator, false);
+        performSortKeyIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testReuseIntegerSort() throws IOException {
+        performReuseIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    public static class MutableInt implements KryoSerializable {
+        private int value;
+        public MutableInt() {
+        }
+        public MutableInt(int value) {
+            this.value = value;
+        }
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeInt(value);
+        }
+        @Override
+        public void read(Kryo kryo, Input input) {
+            value = input.readInt();
+        }
+    }
+
+    private static final Comparator<MutableInt> mutableIntComparator = new Comparator<MutableInt>() {
+        @Override
+        public int compare(MutableInt o1, MutableInt o2) {
+            return Integer.compare(o1.value, o2.value);
+        }
+    };
+
+    @Test
+    public void testReuseMutableSort() throws IOException {
+        ExternalMergeSort<MutableInt> sort = ExternalMergeSort.newSorter(new KryoSerializer<MutableInt>(MutableInt.class), mutableIntComparator)
+                .withChunkSize(100)
+                .withMaxOpenFiles(5)
+                .withObjectReuse(true)
+                .withDistinct(false)
+                .build();
+        final Random rand = new Random();
+        final int size = 5000;
+        Iterator<MutableInt> input = new Iterator<MutableInt>() {
+            private int c;
+            @Override
+            public boolean hasNext() {
+                return c < size;
+            }
+            @Override
+            public MutableInt next() {
+                c++;
+                return new MutableInt(rand.nextInt(1000));
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        Map<MutableInt,Boolean> distinctObjects = new IdentityHashMap<MutableInt,Boolean>();
+        CloseableIterator<MutableInt> iter = sort.mergeSort(input);
+        try {
+            int count = 0;
+            int last = Integer.MIN_VALUE;
+            while (iter.hasNext()) {
+                MutableInt next = iter.next();
+                distinctObjects.put(next, Boolean.TRUE);
+                assertTrue(next.value + " not sorted after " + last, next.value >= last);
+                last = next.value;
+                count++;
+            }
+            assertEquals(size, count);
+        } finally {
+            iter.close();
+        }
+        // the last chunk is kept in memory, but the rest should come from the reused pools
+        assertTrue("Objects not reused: " + distinctObjects.size(), distinctObjects.size() <= 100 + 3 * 50);
+    }
+
+    /**
+     * A KryoSerializable that holds a reference back to itself.
+     */
+    public static class SelfReference implements KryoSerializable {
+        private int value;
+        private SelfReference self;
+        public SelfReference() {
+        }
+        public SelfReference(int value) {
+            this.value = value;
+            this.self = this;
+        }
+        @Override
+        public void write(Kryo kryo, Output output) {
+            output.writeInt(value);
+            kryo.writeObjectOrNull(output, self, SelfReference.class);
+        }
+        @Override
+        public void read(Kryo kryo, Input input) {
+            value = input.readInt();
+            self = kryo.readObjectOrNull(input, SelfReference.class);
+        }
+    }
+
+    @Test
+    public void testKryoSerializableFormat() throws IOException {
+        KryoSerializer<SelfReference> serializer = new KryoSerializer<SelfReference>(SelfReference.class);
+        List<SelfReference> values = new ArrayList<SelfReference>();
+        for (int i=0; i < 10; i++) {
+            values.add(new SelfReference(i));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.writeValues(values.iterator(), out);
+
+        // chunk files are plain Kryo streams
+        Kryo kryo = new Kryo();
+        Input input = new Input(new ByteArrayInputStream(out.toByteArray()));
+        for (int i=0; i < 10; i++) {
+            SelfReference value = kryo.readObject(input, SelfReference.class);
+            assertEquals(i, value.value);
+            assertSame(value, value.self);
+        }
+        assertTrue(input.eof());
+
+        // and the references survive reading into a reused object
+        ExternalMergeSort.ReusingSerializer.ValueReader<SelfReference> reader = serializer.createValueReader(new ByteArrayInputStream(out.toByteArray()));
+        SelfReference reuse = new SelfReference();
+        for (int i=0; i < 10; i++) {
+            SelfReference value = reader.readInto(reuse);
+            assertSame(reuse, value);
+            assertEquals(i, value.value);
+            assertSame(value, value.self);
+        }
+        assertNull(reader.readInto(reuse));
+    }
+
+    @Test
+    public void testConcurrentReferences() throws IOException, InterruptedException {
+        // each thread uses a Kryo of its own, so the reference tracking of
+        // values written at the same time does not get mixed up
+        KryoSerializer<SelfReference> serializer = new KryoSerializer<SelfReference>(SelfReference.class);
+        Comparator<SelfReference> comparator = Comparator.comparingInt((SelfReference v) -> v.value);
+        final SortSink<SelfReference> sink = ExternalMergeSort.newSorter(serializer, comparator)
+                .withChunkSize(50)
+                .withDistinct(false)
+                .build()
+                .newSink();
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t=0; t < 4; t++) {
+            final int offset = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i=0; i < 1000; i++) {
+                        sink.add(new SelfReference(i * 4 + offset));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        CloseableIterator<SelfReference> iter = sink.finish();
+        try {
+            for (int i=0; i < 4000; i++) {
+                SelfReference value = iter.next();
+                assertEquals(i, value.value);
+                assertSame(value, value.self);
+            }
+            assertFalse(iter.hasNext());
+        } finally {
+            iter.close();
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         long ts = System.currentTimeMillis();
         ExternalMergeSortTest et = new ExternalMergeSortTest();
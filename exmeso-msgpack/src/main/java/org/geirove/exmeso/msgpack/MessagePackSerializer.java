@@ -11,7 +11,12 @@ import org.msgpack.MessagePack;
 import org.msgpack.packer.Packer;
 import org.msgpack.unpacker.Unpacker;
 
-public class MessagePackSerializer<T> implements ExternalMergeSort.Serializer<T> {
+/**
+ * Serializer using MessagePack. Objects are reused when merging with object
+ * reuse enabled if the template of the sorted type reads into existing
+ * objects, as the templates of @Message annotated classes do.
+ */
+public class MessagePackSerializer<T> implements ExternalMergeSort.ReusingSerializer<T> {
 
     private final Class<T> type;
     private MessagePack msgpack;
@@ -40,6 +45,32 @@ public class MessagePackSerializer<T> implements ExternalMergeSort.Serializer<T>
         return new MessagePackIterator<T>(unpacker, type, input);
     }
 
+    @Override
+    public ValueReader<T> createValueReader(InputStream input) throws IOException {
+        return new MessagePackValueReader<T>(msgpack.createUnpacker(input), type);
+    }
+
+    private static class MessagePackValueReader<T> implements ValueReader<T> {
+
+        private final Unpacker unpacker;
+        private final Class<T> type;
+
+        private MessagePackValueReader(Unpacker unpacker, Class<T> type) {
+            this.unpacker = unpacker;
+            this.type = type;
+        }
+
+        @Override
+        public T readInto(T reuse) throws IOException {
+            try {
+                return reuse == null ? unpacker.read(type) : unpacker.read(reuse);
+            } catch (EOFException ex) {
+                return null;
+            }
+        }
+
+    }
+
     private static class MessagePackIterator<T> implements Iterator<T> {
 
         private final Class<T> type;
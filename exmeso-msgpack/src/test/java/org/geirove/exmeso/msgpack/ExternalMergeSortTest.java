@@ -32,4 +32,93 @@ public class ExternalMergeSortTest extends AbstractExternalMergeSortTest {
         performMultiMergeIntegerSort(integerSerializer, integerComparator, false);
     }
 
+    @Test
+    public void testResidualIntegerSort() throws IOException {
+        performResidualIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResumeIntegerSort() throws IOException {
+        performResumeIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testRunFileIntegerSort() throws IOException {
+        performRunFileIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testAsyncIntegerSort() throws Exception {
+        performAsyncIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testStreamIntegerSort() throws IOException {
+        performStreamIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testOutputIntegerSort() throws IOException {
+        performOutputIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testPartitionIntegerSort() throws IOException {
+        performPartitionIntegerSort(integerSerializer, integerComparator, false);
+        performPartitionIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testPresortedIntegerSort() throws IOException {
+        performPresortedIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testHeapPressureIntegerSort() throws IOException, InterruptedException {
+        performHeapPressureIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testMultiOrderIntegerSort() throws IOException {
+        performMultiOrderIntegerSort(integerSerializer, integerComparator, false);
+        performMultiOrderIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testSinkIntegerSort() throws IOException, InterruptedException {
+        performSinkIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testResourceManagerIntegerSort() throws IOException, InterruptedException {
+        performResourceManagerIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testHashDistinctIntegerSort() throws IOException {
+        performHashDistinctIntegerSort(integerSerializer, integerComparator, false);
+        performHashDistinctIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testDirectIOIntegerSort() throws IOException {
+        performDirectIOIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testGroupedIntegerSort() throws IOException {
+        performGroupedIntegerSort(integerSerializer, integerComparator, false);
+    }
+
+    @Test
+    public void testSortKeyIntegerSort() throws IOException {
+        performSortKeyIntegerSort(integerSerializer, integerComparator, false);
+        performSortKeyIntegerSort(integerSerializer, integerComparator, true);
+    }
+
+    @Test
+    public void testReuseIntegerSort() throws IOException {
+        performReuseIntegerSort(integerSerializer, integerComparator, false);
+    }
+
 }